@@ -2,10 +2,12 @@ package base;
 
 import io.RawSequences;
 
-import java.util.ArrayList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
+import java.util.Random;
 
 import utils.Utils;
 
@@ -14,14 +16,17 @@ import utils.Utils;
  * 
  * @author novadam
  */
-public class Align {
+public class Align implements AlignView {
 
 	public String[] names;		// sequence names (after lexicographic sorting)
 	public String[] seqs;		// sequence characters (in lexicographic order of names)
 	public AlignCol first;		// reference to first column
-	public List<AlignCol> cols;			// unordered array of all columns (for efficient random column selection)
-	public List<AlignCol> singCols;		// unordered array of all 'singular' columns (single non-gap char)
-										// (for efficient random column merge selection)
+	public ColList cols;			// unordered array of all columns (for efficient random column selection)
+	public ColList singCols;		// unordered array of all 'singular' columns (single non-gap char)
+									// (for efficient random column merge selection)
+	ColArena arena;					// storage of columns, allowing reuse of removed ones
+	long hashHi;		// 128-bit alignment hash (see AlignHash), upper half
+	long hashLo;		// lower half
 	
 	public Align(final RawSequences raw) {
 		int size = raw.size(), len = raw.len();
@@ -45,12 +50,18 @@ public class Align {
 			names[i] = raw.getSeqName(ord[i]);
 		
 		seqs = new String[size];
-		cols = new ArrayList<AlignCol>(len);
-		singCols = new ArrayList<AlignCol>();
+		arena = new ColArena(size);
+		cols = new ColList(arena, len);
+		singCols = new ColList(arena, 16);
 		AlignCol prev = null;
 		for(int i = 0; i < len; i++) {
-			prev = new AlignCol(prev, i, size);
-			cols.add(prev);
+			AlignCol col = arena.alloc();
+			col.ord = i;
+			if(prev != null) {
+				col.prev = prev;
+				prev.next = col;
+			}
+			cols.add(prev = col);
 		}
 		first = cols.get(0);
 		char ch;
@@ -77,6 +88,199 @@ public class Align {
 				System.out.println("Warning: gap-only column found and removed");
 			}
 		}
+		rehash();
+	}
+	
+	/**
+	 * Creates a copy of an alignment, see {@link #copyFrom(Align)}.
+	 */
+	public Align(Align src) {
+		copyFrom(src);
+	}
+	
+	@Override
+	public Align copy() {
+		return new Align(this);
+	}
+	
+	/**
+	 * Makes this alignment a copy of <code>src</code> by copying the column structure
+	 * directly, reusing the columns of this alignment (names and sequences are shared).
+	 * Columns are numbered in positional order, exactly as if the alignment was created
+	 * from <code>src.toRaw()</code>.
+	 * @param src the alignment to copy
+	 */
+	public void copyFrom(Align src) {
+		if(src == this)
+			return;
+		int size = src.names.length;
+		if(arena == null || names.length != size) {
+			arena = new ColArena(size);
+			cols = new ColList(arena, src.cols.size());
+			singCols = new ColList(arena, 16);
+		} else {
+			for(AlignCol col = first; col != null; col = col.next)
+				arena.release(col);
+			cols.clear();
+			singCols.clear();
+		}
+		names = src.names;
+		seqs = src.seqs;
+		
+		AlignCol prev = null;
+		for(AlignCol scol = src.first; scol != null; scol = scol.next) {
+			AlignCol col = arena.alloc();
+			System.arraycopy(scol.inds, 0, col.inds, 0, size);
+			col.hashHi = scol.hashHi;
+			col.hashLo = scol.hashLo;
+			col.ord = cols.size();
+			cols.add(col);
+			if(scol.singOrd >= 0) {
+				col.singOrd = singCols.size();
+				singCols.add(col);
+			}
+			if(prev != null) {
+				col.prev = prev;
+				prev.next = col;
+			} else {
+				first = col;
+			}
+			prev = col;
+		}
+		hashHi = src.hashHi;
+		hashLo = src.hashLo;
+	}
+	
+	/**
+	 * Writes the exact internal state of the alignment: the columns in positional order,
+	 * the order of the column arrays and the column ids, so that random selections
+	 * made after {@link #readState(DataInput)} are the same as they would have been.
+	 * Names and sequences are not written.
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		int size = names.length, i;
+		arena.writeState(out);
+		out.writeInt(cols.size());
+		for(AlignCol col = first; col != null; col = col.next) {
+			out.writeInt(col.id);
+			for(i = 0; i < size; i++)
+				out.writeInt(col.inds[i]);
+		}
+		for(i = 0; i < cols.size(); i++)
+			out.writeInt(cols.get(i).id);
+		out.writeInt(singCols.size());
+		for(i = 0; i < singCols.size(); i++)
+			out.writeInt(singCols.get(i).id);
+	}
+	
+	/**
+	 * Restores a state written by {@link #writeState(DataOutput)} of an alignment
+	 * of the same sequences.
+	 */
+	public void readState(DataInput in) throws IOException {
+		int size = names.length, len, i;
+		arena = ColArena.readState(in, size);
+		len = in.readInt();
+		cols = new ColList(arena, len);
+		singCols = new ColList(arena, 16);
+		AlignCol prev = null;
+		for(int j = 0; j < len; j++) {
+			AlignCol col = arena.get(in.readInt());
+			for(i = 0; i < size; i++)
+				col.inds[i] = in.readInt();
+			col.prev = prev;
+			col.next = null;
+			col.singOrd = -1;
+			if(prev != null)
+				prev.next = col;
+			else
+				first = col;
+			prev = col;
+		}
+		for(i = 0; i < len; i++) {
+			AlignCol col = arena.get(in.readInt());
+			col.ord = i;
+			cols.add(col);
+		}
+		len = in.readInt();
+		for(i = 0; i < len; i++) {
+			AlignCol col = arena.get(in.readInt());
+			col.singOrd = i;
+			singCols.add(col);
+		}
+		rehash();
+	}
+	
+	/**
+	 * Returns the upper half of the 128-bit alignment hash. The hash is maintained
+	 * incrementally by all operations changing the alignment, and identifies the
+	 * alignment (columns and their order) apart from negligible chance of collisions.
+	 */
+	@Override
+	public long getHashHi() {
+		return hashHi;
+	}
+	
+	/**
+	 * Returns the lower half of the 128-bit alignment hash.
+	 * @see #getHashHi()
+	 */
+	@Override
+	public long getHashLo() {
+		return hashLo;
+	}
+	
+	/**
+	 * Recalculates the column hashes and the alignment hash from scratch.
+	 */
+	void rehash() {
+		hashHi = hashLo = 0;
+		for(AlignCol col = first; col != null; col = col.next)
+			col.rehash();
+		hashLinks(first, null, 1);
+	}
+	
+	/**
+	 * Adds (<code>sign</code> = 1) or subtracts (<code>sign</code> = -1) the hashes of the links
+	 * from <code>first.prev</code> to <code>first</code>, then from each column to the next one up to
+	 * and including the link from <code>last</code> to <code>last.next</code>. If <code>last</code> is
+	 * <code>null</code> all links up to the alignment end are included.
+	 */
+	void hashLinks(AlignCol first, AlignCol last, int sign) {
+		long hi = AlignHash.linkHi(first.prev, first), lo = AlignHash.linkLo(first.prev, first);
+		for(AlignCol col = first; col != null; col = col.next) {
+			hi += AlignHash.linkHi(col, col.next);
+			lo += AlignHash.linkLo(col, col.next);
+			if(col == last)
+				break;
+		}
+		hashHi += sign*hi;
+		hashLo += sign*lo;
+	}
+	
+	/**
+	 * Changes one character index of a column and updates the column and alignment hashes.
+	 * Does not update the singular column array, {@link #updateSing(AlignCol)} must be
+	 * called separately when the number of non-gaps in the column may have changed.
+	 * @param col the column
+	 * @param row row (sequence) index within the column
+	 * @param ch the new character index (-1 for a gap)
+	 */
+	public void setInd(AlignCol col, int row, int ch) {
+		int old = col.inds[row];
+		if(old == ch)
+			return;
+		hashLinks(col, col, -1);
+		if(old >= 0) {
+			col.hashHi ^= AlignHash.cell(row, old, AlignHash.SEED_HI);
+			col.hashLo ^= AlignHash.cell(row, old, AlignHash.SEED_LO);
+		}
+		if(ch >= 0) {
+			col.hashHi ^= AlignHash.cell(row, ch, AlignHash.SEED_HI);
+			col.hashLo ^= AlignHash.cell(row, ch, AlignHash.SEED_LO);
+		}
+		col.inds[row] = ch;
+		hashLinks(col, col, 1);
 	}
 	
 	/**
@@ -86,9 +290,32 @@ public class Align {
 	 * @return alignment window represented by an {@link AlignWin} object
 	 */
 	public AlignWin randWin(int len) {
-		AlignWin win = new AlignWin(this, len);
+		return randWin(new AlignWin(this, len));
+	}
+	
+	/**
+	 * Randomly selects an alignment window of length <code>win.len</code>, reusing
+	 * the supplied window object.
+	 * Random numbers are taken from {@link Utils#generator}.
+	 * @param win window of this alignment to be updated
+	 * @return <code>win</code>
+	 */
+	public AlignWin randWin(AlignWin win) {
+		return randWin(win, Utils.generator);
+	}
+	
+	/**
+	 * Randomly selects an alignment window of length <code>win.len</code>, reusing
+	 * the supplied window object.
+	 * @param win window of this alignment to be updated
+	 * @param rnd source of random numbers
+	 * @return <code>win</code>
+	 */
+	public AlignWin randWin(AlignWin win, Random rnd) {
+		int len = win.len;
+		win.align = this;
 		do {
-			int ind = Utils.generator.nextInt(cols.size());
+			int ind = rnd.nextInt(cols.size());
 			win.first = win.last = cols.get(ind);
 			for(int i = 0; i < len-1 && win.last != null; i++)
 				win.last = win.last.next;
@@ -102,7 +329,14 @@ public class Align {
 	 * @return alignment column represented by an {@link AlignCol} object
 	 */
 	public AlignCol randCol() {
-		int ind = Utils.generator.nextInt(cols.size());
+		return randCol(Utils.generator);
+	}
+	
+	/**
+	 * Randomly selects an alignment column using the random numbers of <code>rnd</code>.
+	 */
+	public AlignCol randCol(Random rnd) {
+		int ind = rnd.nextInt(cols.size());
 		return cols.get(ind);
 	}
 
@@ -112,12 +346,29 @@ public class Align {
 	 * @return alignment column represented by an {@link AlignCol} object or <code>null</code> if none exist
 	 */
 	public AlignCol randSingCol() {
+		return randSingCol(Utils.generator);
+	}
+	
+	/**
+	 * Randomly selects a singular alignment column using the random numbers of <code>rnd</code>.
+	 * @return the column or <code>null</code> if none exist
+	 */
+	public AlignCol randSingCol(Random rnd) {
 		if(singCols.size() == 0)
 			return null;
-		int ind = Utils.generator.nextInt(singCols.size());
+		int ind = rnd.nextInt(singCols.size());
 		return singCols.get(ind);
 	}
 
+	/**
+	 * Returns an unlinked column that can be inserted into this alignment with
+	 * {@link #insertCol(AlignCol, AlignCol)}. Columns removed earlier are reused,
+	 * so the contents of the column are undefined.
+	 */
+	public AlignCol newCol() {
+		return arena.alloc();
+	}
+
 	/**
 	 * Inserts column into alignment after a specified column and updates all references.
 	 * @param col column to be inserted
@@ -125,6 +376,11 @@ public class Align {
 	 *   if column should be the first one of the alignment)
 	 */
 	public void insertCol(AlignCol col, AlignCol prev) {
+		// remove hash of the link being broken
+		AlignCol next = prev != null ? prev.next : first;
+		hashHi -= AlignHash.linkHi(prev, next);
+		hashLo -= AlignHash.linkLo(prev, next);
+		
 		// update links
 		col.prev = prev;
 		if(prev != null) {
@@ -137,17 +393,28 @@ public class Align {
 		if(col.next != null)
 			col.next.prev = col;
 		
+		// add hashes of the new links
+		col.rehash();
+		hashLinks(col, col, 1);
+		
 		// update unordered arrays
+		arena.adopt(col);
 		col.ord = cols.size();
 		cols.add(col);
 		updateSing(col);
 	}
 	
 	/**
-	 * Removes column from the alignment and updates all references.
+	 * Removes column from the alignment and updates all references. The column
+	 * object is reused by subsequent {@link #newCol()} calls.
 	 * @param col column to be removed
 	 */
 	public void removeCol(AlignCol col) {
+		// update hash
+		hashLinks(col, col, -1);
+		hashHi += AlignHash.linkHi(col.prev, col.next);
+		hashLo += AlignHash.linkLo(col.prev, col.next);
+		
 		// update links
 		if(col.prev != null)
 			col.prev.next = col.next;
@@ -157,6 +424,7 @@ public class Align {
 			col.next.prev = col.prev;
 		
 		updateUnordDel(col);
+		arena.release(col);
 	}
 	
 	/**
@@ -172,13 +440,13 @@ public class Align {
 			tcol.ord = ord;
 			cols.set(ord, tcol);
 		}
-		cols.remove(clast);
+		cols.removeLast();
 
 		// update 'singular' column array
 		singDel(col);
 	}
 	
-	private void singDel(AlignCol col) {
+	void singDel(AlignCol col) {
 		int ord = col.singOrd;
 		if(ord >= 0) {
 			int clast = singCols.size()-1;
@@ -187,7 +455,7 @@ public class Align {
 				tcol.singOrd = ord;
 				singCols.set(ord, tcol);
 			}
-			singCols.remove(clast);
+			singCols.removeLast();
 			col.singOrd = -1;
 		}
 	}
@@ -210,6 +478,7 @@ public class Align {
 		return nongaps;
 	}
 	
+	@Override
 	public RawSequences toRaw() {
 		if(Utils.DEBUG)
 			checkCons();
@@ -273,6 +542,18 @@ public class Align {
 		for(int i = 0; i < seqs.length; i++)
 			if(poss[i] != seqs[i].length())
 				throw new Error("Sequence length mismatch for seq "+(i+1));
+		long hi = hashHi, lo = hashLo;
+		n = 0;
+		for(AlignCol col = first; col != null; col = col.next, n++) {
+			if(col.hashHi != AlignHash.col(col.inds, AlignHash.SEED_HI) || col.hashLo != AlignHash.col(col.inds, AlignHash.SEED_LO))
+				throw new Error("Inconsistency in column hash for column "+(n+1)+": "+col.toString(this));
+		}
+		hashHi = hashLo = 0;
+		hashLinks(first, null, 1);
+		if(hashHi != hi || hashLo != lo) {
+			hashHi = hi; hashLo = lo;
+			throw new Error("Inconsistency in alignment hash");
+		}
 	}
 	
 	public static void main(String[] args) {
@@ -283,7 +564,7 @@ public class Align {
 		Align a = new Align(raw);
 		System.out.print(a);
 		System.out.println("Singular columns: ");
-		for(AlignCol col : a.singCols)
-			System.out.println(col.toString(a));
+		for(int i = 0; i < a.singCols.size(); i++)
+			System.out.println(a.singCols.get(i).toString(a));
 	}
 }
@@ -11,6 +11,9 @@ public class AlignCol {
 	AlignCol next;		// reference to next alignment column
 	int ord;			// column ordinal (index in Align.cols)
 	int singOrd = -1;	// column single non-gap ordinal (index in Align.singCols or -1)
+	long hashHi;		// column hash, upper half (see AlignHash)
+	long hashLo;		// column hash, lower half
+	int id = -1;		// index in the ColArena of the alignment (-1 if not registered)
 	
 	public AlignCol(AlignCol prev, int ord, int size) {
 		if(prev != null) {
@@ -24,6 +27,19 @@ public class AlignCol {
 	public AlignCol(int[] inds) {
 		this.inds = inds;
 	}
+	
+	AlignCol(int id, int size) {
+		this.id = id;
+		inds = new int[size];
+	}
+
+	/**
+	 * Recalculates the column hash from the character indices.
+	 */
+	void rehash() {
+		hashHi = AlignHash.col(inds, AlignHash.SEED_HI);
+		hashLo = AlignHash.col(inds, AlignHash.SEED_LO);
+	}
 
 	public int nonGaps() {
 		int nongaps = 0, len = inds.length;
@@ -0,0 +1,74 @@
+package base;
+
+/**
+ * Helper functions of the 128-bit alignment hash. The hash of a column is the XOR
+ * of the hashes of its (row, character) cells, the hash of an alignment is the sum
+ * of the hashes of all links between consecutive columns (including the links to
+ * the alignment ends). As the consecutive pairs determine the order of the (distinct)
+ * columns, two alignments have the same hash iff they are the same (apart from
+ * hash collisions), and local changes can be followed in constant time.
+ * Each part is calculated in two independent 64-bit halves.
+ * 
+ * @author novadam
+ */
+final class AlignHash {
+	
+	static final long SEED_HI = 0x9E3779B97F4A7C15L;
+	static final long SEED_LO = 0xC2B2AE3D27D4EB4FL;
+	
+	private static final long END_HI = 0x2545F4914F6CDD1DL;	// column hash of the alignment ends
+	private static final long END_LO = 0x5851F42D4C957F2DL;
+	
+	private AlignHash() {
+	}
+	
+	/**
+	 * 64-bit finalizer of MurmurHash3, a bijective mixing function.
+	 */
+	static long mix(long x) {
+		x ^= x >>> 33;
+		x *= 0xFF51AFD7ED558CCDL;
+		x ^= x >>> 33;
+		x *= 0xC4CEB9FE1A85EC53L;
+		x ^= x >>> 33;
+		return x;
+	}
+	
+	/**
+	 * Hash of character <code>ch</code> of sequence <code>row</code> (one half, selected by <code>seed</code>).
+	 */
+	static long cell(int row, int ch, long seed) {
+		return mix((((long)row << 32) | (ch & 0xFFFFFFFFL)) + seed);
+	}
+	
+	/**
+	 * Hash of a column given by its array of character indices (one half, selected by <code>seed</code>).
+	 */
+	static long col(int[] inds, long seed) {
+		long h = 0;
+		for(int i = 0; i < inds.length; i++)
+			if(inds[i] >= 0)
+				h ^= cell(i, inds[i], seed);
+		return h;
+	}
+	
+	/**
+	 * Hash of the link between columns <code>a</code> and <code>b</code> (<code>null</code>
+	 * denoting the alignment ends), upper half.
+	 */
+	static long linkHi(AlignCol a, AlignCol b) {
+		return link(a != null ? a.hashHi : END_HI, b != null ? b.hashHi : END_HI, SEED_HI);
+	}
+
+	/**
+	 * Hash of the link between columns <code>a</code> and <code>b</code> (<code>null</code>
+	 * denoting the alignment ends), lower half.
+	 */
+	static long linkLo(AlignCol a, AlignCol b) {
+		return link(a != null ? a.hashLo : END_LO, b != null ? b.hashLo : END_LO, SEED_LO);
+	}
+	
+	private static long link(long ha, long hb, long seed) {
+		return mix(ha*0x9E3779B97F4A7C15L + Long.rotateLeft(hb, 32) + seed);
+	}
+}
@@ -0,0 +1,32 @@
+package base;
+
+import io.RawSequences;
+
+/**
+ * Read-only access to an alignment, e.g. the current state of a chain passed to a
+ * {@link SampleListener}. Use {@link #copy()} to keep the alignment.
+ *
+ * @author novadam
+ */
+public interface AlignView {
+
+	/**
+	 * Returns the upper half of the 128-bit alignment hash.
+	 */
+	long getHashHi();
+
+	/**
+	 * Returns the lower half of the 128-bit alignment hash.
+	 */
+	long getHashLo();
+
+	/**
+	 * Returns the alignment as gapped sequences.
+	 */
+	RawSequences toRaw();
+
+	/**
+	 * Returns an independent copy of the alignment.
+	 */
+	Align copy();
+}
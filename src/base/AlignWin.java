@@ -1,7 +1,5 @@
 package base;
 
-import java.util.List;
-
 import utils.Utils;
 
 /**
@@ -35,11 +33,14 @@ public class AlignWin {
 	
 	/**
 	 * Replaces window with the supplied window within the alignment. New window
-	 * columns must already be linked both ways with each other.
+	 * columns must already be linked both ways with each other, and should preferably
+	 * be obtained from {@link Align#newCol()}. The old columns are reused by the alignment.
 	 * Updates all other references in the alignment.
 	 * @param other window to replace this window with
 	 */
 	public void replaceWith(AlignWin other) {
+		align.hashLinks(first, last, -1);
+		
 		// integrate new window into pointer list
 		AlignCol col = first.prev;
 		if(col != null) {
@@ -57,22 +58,39 @@ public class AlignWin {
 		// update unordered column array
 		col = first;
 		AlignCol ocol = other.first;
-		List<AlignCol> cols = align.cols;
+		ColList cols = align.cols;
+		ColArena arena = align.arena;
 		// (1) replace 'overlapping' columns
 		int overlap = Math.min(len, other.len), i, ord;
 		for(i = 0; i < overlap; i++, col = col.next, ocol = ocol.next) {
+			arena.adopt(ocol);
 			ord = ocol.ord = col.ord;
 			cols.set(ord, ocol);
+			align.singDel(col);
+			arena.release(col);
 		}
 		// (2) delete remaining old columns
-		for(; i < len; i++, col = col.next)
+		for(; i < len; i++, col = col.next) {
 			align.updateUnordDel(col);
+			arena.release(col);
+		}
 		// (3) or add remaining new columns
 		int clast = cols.size()-1;
 		for(; i < other.len; i++, ocol = ocol.next) {
+			arena.adopt(ocol);
 			ocol.ord = ++clast;
 			cols.add(ocol);
 		}
+		
+		// update 'singular' column array and hash
+		for(ocol = other.first; ; ocol = ocol.next) {
+			ocol.singOrd = -1;
+			align.updateSing(ocol);
+			ocol.rehash();
+			if(ocol == other.last)
+				break;
+		}
+		align.hashLinks(other.first, other.last, 1);
 	}
 	
 	/**
@@ -85,9 +103,14 @@ public class AlignWin {
 	public void replaceWith(int[][] cols) {
 		if(cols.length != len)
 			throw new Error("Window length does not agree with the size of new column array");
+		align.hashLinks(first, last, -1);
 		AlignCol col = first;
-		for(int i = 0; i < cols.length; i++, col = col.next)
+		for(int i = 0; i < cols.length; i++, col = col.next) {
 			col.inds = cols[i];
+			col.rehash();
+			align.updateSing(col);
+		}
+		align.hashLinks(first, last, 1);
 	}
 	
 }
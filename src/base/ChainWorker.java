@@ -0,0 +1,158 @@
+package base;
+
+import io.RawSequences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import utils.StateRandom;
+
+/**
+ * Runs a block of the chains of a {@link DistSampler} in a worker process, as commanded
+ * by the {@link WorkerPool} of the sampler over a local socket. The worker only reports
+ * the distances of its chains after each batch of steps; alignments are transferred when
+ * a swap between chains of different workers is accepted and for the samples.
+ *
+ * @author novadam
+ */
+public class ChainWorker {
+
+	// commands of the protocol
+	static final int CMD_INIT = 1;		// ref, settings and chain states; no reply
+	static final int CMD_STEPS = 2;		// make steps; reply: distances of the chains
+	static final int CMD_SWAP = 3;		// count a swap attempt of a chain, swap states if both are local; no reply
+	static final int CMD_GET = 4;		// reply: length, distance and alignment of a chain
+	static final int CMD_SET = 5;		// set the distance and alignment of a chain; no reply
+	static final int CMD_SAMPLE = 6;	// take samples; reply: success and the samples of output chains
+	static final int CMD_STATE = 7;		// reply: complete states of the chains
+	static final int CMD_QUIT = 8;		// reply: empty
+
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	private Align ref;
+	private DistChain[] chains;
+	private int first;					// id of the first chain of the worker
+
+	public ChainWorker(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	/**
+	 * Serves commands until told to quit.
+	 */
+	public void run() throws IOException {
+		while(true) {
+			int cmd = in.readByte(), k, c;
+			switch(cmd) {
+			case CMD_INIT:
+				init();
+				break;
+			case CMD_STEPS:
+				int n = in.readInt();
+				for(k = 0; k < chains.length; k++)
+					chains[k].makeSteps(n);
+				for(k = 0; k < chains.length; k++)
+					out.writeInt(chains[k].getCurDist());
+				out.flush();
+				break;
+			case CMD_SWAP:
+				DistChain a = chain(in.readInt());
+				c = in.readInt();
+				if(!in.readBoolean())
+					a.rejectSwap();
+				else
+					a.acceptSwap(c >= first && c < first+chains.length ? chain(c) : null);
+				break;
+			case CMD_GET:
+				DistChain g = chain(in.readInt());
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				DataOutputStream state = new DataOutputStream(buf);
+				state.writeInt(g.getCurDist());
+				g.getCurAli().writeState(state);
+				state.flush();
+				out.writeInt(buf.size());
+				buf.writeTo(out);
+				out.flush();
+				break;
+			case CMD_SET:
+				DistChain s = chain(in.readInt());
+				int dist = in.readInt();
+				Align ali = new Align(ref);
+				ali.readState(in);
+				s.jumpTo(ali, dist);
+				break;
+			case CMD_SAMPLE:
+				for(k = 0; k < chains.length; k++) {
+					boolean succ = chains[k].sample();
+					out.writeBoolean(succ);
+					if(succ && chains[k].isOutput()) {
+						out.writeInt(chains[k].getCurDist());
+						chains[k].getCurAli().writeState(out);
+					}
+				}
+				out.flush();
+				break;
+			case CMD_STATE:
+				for(k = 0; k < chains.length; k++) {
+					out.writeLong(chains[k].getTraceTime());
+					chains[k].writeState(out);
+				}
+				out.flush();
+				break;
+			case CMD_QUIT:
+				out.flush();
+				return;
+			default:
+				throw new IOException("unknown command "+cmd);
+			}
+		}
+	}
+
+	private DistChain chain(int id) throws IOException {
+		if(id < first || id >= first+chains.length)
+			throw new IOException("chain "+(id+1)+" is not run by this worker");
+		return chains[id-first];
+	}
+
+	private void init() throws IOException {
+		Random rnd = new StateRandom(in.readLong());
+		RawSequences raw = new RawSequences();
+		int size = in.readInt(), k;
+		for(k = 0; k < size; k++)
+			raw.add(in.readUTF(), in.readUTF());
+		ref = new Align(raw);
+		DistCalc distCalc = new DistCalc(ref);
+
+		boolean rejectNonExact = in.readBoolean(), sketchStats = in.readBoolean();
+		int realignLen = in.readInt();
+		boolean gibbsChar = in.readBoolean();
+		int multiTry = in.readInt();
+		boolean kinetic = in.readBoolean();
+		first = in.readInt();
+		chains = new DistChain[in.readInt()];
+		for(k = 0; k < chains.length; k++) {
+			int target = in.readInt();
+			String name = in.readBoolean() ? in.readUTF() : null;
+			chains[k] = new DistChain(first+k, ref, distCalc, target, 1)
+					.setRejectNonExact(rejectNonExact)
+					.setSketchStats(sketchStats)
+					.setRealignWin(realignLen)
+					.setGibbsChar(gibbsChar)
+					.setMultiTry(multiTry)
+					.setKinetic(kinetic)
+					.setSampleName(name)
+					.setRandom(rnd);
+			chains[k].init();
+			chains[k].readState(in);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Storage of the columns of an {@link Align}ment. Columns are identified by their
+ * index in the arena ({@link AlignCol#id}). Removed columns are put on a free list and
+ * are reused together with their index arrays, so once the arena has grown to the
+ * alignment length, inserting and removing columns does not allocate memory.
+ * 
+ * @author novadam
+ */
+class ColArena {
+	
+	private int size;						// number of sequences (length of index arrays)
+	private AlignCol[] cols = new AlignCol[16];	// id -> column
+	private int ncols;						// number of ids in use
+	private int[] free = new int[16];		// ids of released columns
+	private int nfree;
+	
+	ColArena(int size) {
+		this.size = size;
+	}
+	
+	AlignCol get(int id) {
+		return cols[id];
+	}
+	
+	/**
+	 * Returns an unlinked column with undefined content, reusing a released
+	 * column if available.
+	 */
+	AlignCol alloc() {
+		AlignCol col;
+		if(nfree > 0) {
+			col = cols[free[--nfree]];
+		} else {
+			if(ncols == cols.length) {
+				AlignCol[] ext = new AlignCol[2*cols.length];
+				System.arraycopy(cols, 0, ext, 0, cols.length);
+				cols = ext;
+			}
+			col = cols[ncols] = new AlignCol(ncols++, size);
+		}
+		col.prev = col.next = null;
+		col.ord = -1;
+		col.singOrd = -1;
+		return col;
+	}
+	
+	/**
+	 * Returns a column to the free list. The column must not be used by the
+	 * alignment afterwards.
+	 */
+	void release(AlignCol col) {
+		if(nfree == free.length) {
+			int[] ext = new int[2*free.length];
+			System.arraycopy(free, 0, ext, 0, free.length);
+			free = ext;
+		}
+		free[nfree++] = col.id;
+	}
+	
+	/**
+	 * Writes the id allocation state (number of ids and free list).
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(ncols);
+		out.writeInt(nfree);
+		for(int i = 0; i < nfree; i++)
+			out.writeInt(free[i]);
+	}
+	
+	/**
+	 * Creates an arena with the id allocation state written by {@link #writeState(DataOutput)},
+	 * so that later allocations return the same ids.
+	 */
+	static ColArena readState(DataInput in, int size) throws IOException {
+		ColArena arena = new ColArena(size);
+		int n = in.readInt();
+		for(int i = 0; i < n; i++)
+			arena.alloc();
+		n = in.readInt();
+		for(int i = 0; i < n; i++)
+			arena.release(arena.get(in.readInt()));
+		return arena;
+	}
+	
+	/**
+	 * Registers a column created outside the arena (e.g. by {@link AlignCol#AlignCol(int[])}),
+	 * unless it already belongs to it.
+	 */
+	void adopt(AlignCol col) {
+		if(col.id >= 0 && col.id < ncols && cols[col.id] == col)
+			return;
+		if(col.inds.length != size)
+			throw new Error("Column size "+col.inds.length+" does not match alignment size "+size);
+		if(ncols == cols.length) {
+			AlignCol[] ext = new AlignCol[2*cols.length];
+			System.arraycopy(cols, 0, ext, 0, cols.length);
+			cols = ext;
+		}
+		col.id = ncols;
+		cols[ncols++] = col;
+	}
+}
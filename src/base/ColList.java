@@ -0,0 +1,49 @@
+package base;
+
+/**
+ * Unordered array of alignment columns, stored as a primitive array of column ids
+ * within the {@link ColArena} of the alignment. Used for efficient random selection
+ * of columns: elements are removed by moving the last element into their place.
+ * 
+ * @author novadam
+ */
+public class ColList {
+	
+	private ColArena arena;
+	private int[] ids;
+	private int size;
+	
+	ColList(ColArena arena, int capacity) {
+		this.arena = arena;
+		ids = new int[Math.max(capacity, 16)];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public AlignCol get(int i) {
+		return arena.get(ids[i]);
+	}
+	
+	void set(int i, AlignCol col) {
+		ids[i] = col.id;
+	}
+	
+	void add(AlignCol col) {
+		if(size == ids.length) {
+			int[] nids = new int[2*ids.length];
+			System.arraycopy(ids, 0, nids, 0, size);
+			ids = nids;
+		}
+		ids[size++] = col.id;
+	}
+	
+	void removeLast() {
+		size--;
+	}
+	
+	void clear() {
+		size = 0;
+	}
+}
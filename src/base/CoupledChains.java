@@ -0,0 +1,235 @@
+package base;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.SimpleStats;
+import utils.StateRandom;
+
+/**
+ * Pairs of coupled chains started from the reference, for bounding the burn-in needed
+ * and for unbiased estimation of the mean distance (Jacob, O'Leary, Atchade 2020,
+ * Biswas, Jacob, Vanetti 2019). The first chain is run <code>lag</code> steps ahead, then
+ * both chains are advanced on separate threads with common random numbers: step
+ * <code>t</code> of the first and step <code>t-lag</code> of the second chain draw from the
+ * same reseeded generator, so the chains make identical choices and may meet, i.e.
+ * reach the same alignment. After meeting the second chain follows the first one.
+ *
+ * <p>From the meeting times <code>tau</code> of independent pairs, the total variation
+ * distance from the target after <code>t</code> steps is bounded by
+ * <code>E[max(0, ceil((tau-lag-t)/lag))]</code>.
+ *
+ * @author novadam
+ */
+public class CoupledChains {
+
+	private static final int BLOCK = 1000;		// steps made by the chains between checks for meeting
+
+	private DistChain x, y;
+	private StateRandom xRnd = new StateRandom(), yRnd = new StateRandom();
+	private int lag;
+	private long estFrom = 0, estTo = 0;		// averaging window of the unbiased estimator
+
+	private long[] meetTimes;					// -1 if the pair did not meet
+	private double[] estimates;
+
+	// traces of the current block
+	private int[] xDists = new int[BLOCK], yDists = new int[BLOCK];
+	private long[] xHashHi = new long[BLOCK], xHashLo = new long[BLOCK];
+	private long[] yHashHi = new long[BLOCK], yHashLo = new long[BLOCK];
+
+	/**
+	 * @param x first chain of the pairs (set up with the moves to use)
+	 * @param y second chain, with the same settings as <code>x</code>
+	 * @param lag number of steps the first chain is ahead
+	 */
+	public CoupledChains(DistChain x, DistChain y, int lag) {
+		if(lag < 1)
+			throw new Error("Bad lag: "+lag);
+		this.x = x.setRandom(xRnd);
+		this.y = y.setRandom(yRnd);
+		this.lag = lag;
+	}
+
+	/**
+	 * Sets the window of steps <code>k..m</code> over which the unbiased estimate of the
+	 * mean distance averages (0, 0 by default).
+	 */
+	public void setEstimator(long k, long m) {
+		if(k < 0 || m < k)
+			throw new Error("Bad estimator window: "+k+"-"+m);
+		estFrom = k;
+		estTo = m;
+	}
+
+	/**
+	 * Runs <code>reps</code> independent pairs of chains until they meet (or for at most
+	 * <code>maxSteps</code> steps), with the seeds of the pairs taken from <code>rnd</code>.
+	 */
+	public void run(int reps, long maxSteps, Random rnd) {
+		meetTimes = new long[reps];
+		estimates = new double[reps];
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			for(int r = 0; r < reps; r++)
+				runPair(r, maxSteps, rnd.nextLong(), pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void runPair(int r, long maxSteps, long seed, ExecutorService pool) {
+		x.init();
+		y.init();
+		double n = estTo-estFrom+1, avg = 0, corr = 0;
+		long t = 0, tau = -1;
+
+		// lead of the first chain
+		while(t < lag) {
+			int b = (int)Math.min(BLOCK, lag-t);
+			steps(x, xRnd, seed, t+1, b, xDists, xHashHi, xHashLo);
+			for(int i = 0; i < b; i++)
+				if(t+1+i >= estFrom && t+1+i <= estTo)
+					avg += xDists[i];
+			t += b;
+		}
+		// (the distance of the initial state is 0 in the average)
+		if(same(x, y))
+			tau = lag;
+		else if(estFrom == 0)
+			corr += Math.min(1, 1/n)*(x.getCurDist()-y.getCurDist());
+
+		// coupled steps
+		while(tau < 0 ? t < maxSteps : t < estTo) {
+			int b = (int)Math.min(BLOCK, (tau < 0 ? maxSteps : estTo)-t);
+			Future<Void> fx = pool.submit(stepper(x, xRnd, seed, t+1, b, xDists, xHashHi, xHashLo));
+			Future<Void> fy = tau < 0 ? pool.submit(stepper(y, yRnd, seed, t+1, b, yDists, yHashHi, yHashLo)) : null;
+			try {
+				fx.get();
+				if(fy != null)
+					fy.get();
+			} catch (InterruptedException e) {
+				throw new Error("Interrupted while running coupled chains");
+			} catch (ExecutionException e) {
+				throw new Error("Error in coupled chain: "+e.getCause(), e.getCause());
+			}
+			for(int i = 0; i < b; i++) {
+				long l = t+1+i;
+				if(tau < 0 && xHashHi[i] == yHashHi[i] && xHashLo[i] == yHashLo[i] && xDists[i] == yDists[i])
+					tau = l;
+				if(l >= estFrom && l <= estTo)
+					avg += xDists[i];
+				if(tau < 0 && l >= estFrom+lag)
+					corr += Math.min(1, Math.ceil((l-estFrom)/(double)lag)/n)*(xDists[i]-yDists[i]);
+			}
+			t += b;
+		}
+		meetTimes[r] = tau;
+		estimates[r] = tau < 0 ? Double.NaN : avg/n+corr;
+	}
+
+	private static boolean same(DistChain a, DistChain b) {
+		Align aa = a.getCurAli(), ba = b.getCurAli();
+		return a.getCurDist() == b.getCurDist() && aa.getHashHi() == ba.getHashHi() && aa.getHashLo() == ba.getHashLo();
+	}
+
+	private static Callable<Void> stepper(final DistChain chain, final StateRandom rnd, final long seed, final long from,
+			final int n, final int[] dists, final long[] hashHi, final long[] hashLo) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
+				steps(chain, rnd, seed, from, n, dists, hashHi, hashLo);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Makes <code>n</code> steps of a chain, step <code>from+i</code> of the pair using random
+	 * numbers seeded by the step number, and records the distances and hashes.
+	 */
+	private static void steps(DistChain chain, StateRandom rnd, long seed, long from, int n,
+			int[] dists, long[] hashHi, long[] hashLo) {
+		for(int i = 0; i < n; i++) {
+			rnd.setSeed(AlignHash.mix(seed+from+i));
+			chain.makeStep();
+			Align a = chain.getCurAli();
+			dists[i] = chain.getCurDist();
+			hashHi[i] = a.getHashHi();
+			hashLo[i] = a.getHashLo();
+		}
+	}
+
+	/**
+	 * Returns the meeting times of the pairs (-1 for pairs that did not meet).
+	 */
+	public long[] getMeetTimes() {
+		return meetTimes;
+	}
+
+	/**
+	 * Returns the estimated upper bound on the total variation distance of a chain from the
+	 * target distribution after <code>t</code> steps (NaN if not all pairs met).
+	 */
+	public double tvBound(long t) {
+		double sum = 0;
+		for(long tau : meetTimes) {
+			if(tau < 0)
+				return Double.NaN;
+			sum += Math.max(0, Math.ceil((tau-lag-t)/(double)lag));
+		}
+		return sum/meetTimes.length;
+	}
+
+	/**
+	 * Returns the smallest number of steps after which the total variation bound is at most
+	 * <code>eps</code>, or -1 if not all pairs met.
+	 */
+	public long getBurnin(double eps) {
+		if(Double.isNaN(tvBound(0)))
+			return -1;
+		long lo = 0, hi = 0;
+		for(long tau : meetTimes)
+			hi = Math.max(hi, tau);
+		while(lo < hi) {
+			long mid = (lo+hi)/2;
+			if(tvBound(mid) <= eps)
+				hi = mid;
+			else
+				lo = mid+1;
+		}
+		return lo;
+	}
+
+	public void printStats(double eps) {
+		long[] sorted = meetTimes.clone();
+		Arrays.sort(sorted);
+		int missed = 0;
+		SimpleStats taus = new SimpleStats("meeting time"), ests = new SimpleStats("estimate");
+		for(int r = 0; r < meetTimes.length; r++) {
+			if(meetTimes[r] < 0) {
+				missed++;
+			} else {
+				taus.addData(meetTimes[r]);
+				ests.addData(estimates[r]);
+			}
+		}
+		System.out.println("Pairs: "+meetTimes.length+" lag: "+lag+" not met: "+missed);
+		if(missed == meetTimes.length)
+			return;
+		System.out.println("Meeting time: mean "+String.format(Locale.US, "%.1f", taus.getAvg())+
+				" median "+sorted[missed+(sorted.length-missed)/2]+" max "+sorted[sorted.length-1]);
+		if(missed > 0)
+			return;
+		System.out.println("TV bound "+eps+" after steps: "+getBurnin(eps));
+		System.out.println("Unbiased mean dist (steps "+estFrom+"-"+estTo+"): "+
+				String.format(Locale.US, "%.2f", ests.getAvg())+" +- "+
+				String.format(Locale.US, "%.2f", ests.getStdDev()/Math.sqrt(ests.getN())));
+	}
+}
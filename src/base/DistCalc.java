@@ -19,6 +19,20 @@ public class DistCalc {
 		cacheFrom(from);
 	}
 	
+	/**
+	 * Returns the maximal possible distance from the cached alignment.
+	 */
+	public int getMaxD() {
+		return maxD;
+	}
+	
+	/**
+	 * Returns the number of sequences of the cached alignment.
+	 */
+	public int getSeqNum() {
+		return names.length;
+	}
+	
 	public void setVerifyNames(boolean verifyNames) {
 		this.verifyNames = verifyNames;
 	}
@@ -65,7 +79,15 @@ public class DistCalc {
 	}
 	
 	public int dist(AlignCol col) {
-		int[] inds = col.inds, inds2;
+		return dist(col.inds);
+	}
+	
+	/**
+	 * Calculates the distance contribution of a column given as an array of character
+	 * indices (-1 for gaps).
+	 */
+	public int dist(int[] inds) {
+		int[] inds2;
 		int size = inds.length;
 		int d = 0, i, j, ch;
 		for(i = 0; i < size; i++) {
@@ -1,17 +1,41 @@
 package base;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Locale;
+import java.util.Random;
 
+import utils.AutoCorr;
 import utils.CntGroup;
+import utils.CountSketch;
 import utils.Counter;
+import utils.HashCounter;
+import utils.Histogram;
+import utils.HyperLogLog;
 import utils.SimpleStats;
 import utils.Utils;
 
 public class DistChain {
+	
+	private static final int RW_MAX_TRIES = 10;		// max. proposals tried in a window realignment step
+	private static final int AC_BATCHES = 64;		// number of batches in autocorrelation estimation
+	private static final int AC_MIN_BATCH_RATIO = 5;	// min. batch length per autocorrelation time for reliability
+	private static final double ADAPT_MIN_SHARE = 0.2;	// share of the move mixture kept uniform when adapting
+	private static final double QUENCH_HEAT = 0.05;		// heat of the greedy walk to the target distance
+	private static final int QUENCH_STALL = 10000;		// steps without approaching the target ending the walk
+	private static final int VERIFY_STRICT_STEPS = 10000;	// steps checked inline after a drift was found
+	
+	// move types
+	static final int MOVE_SLIDE = 0, MOVE_BREAK = 1, MOVE_JOIN = 2, MOVE_REALIGN = 3, MOVE_GIBBS = 4;
+	
+	// sketch parameters for bounded-memory statistics
+	private static final int SKETCH_PREC = 14;			// HyperLogLog with 16k registers (~0.8% error)
+	private static final int SKETCH_DEPTH = 5;
+	private static final int SKETCH_LOG_WIDTH = 14;		// count sketch of 5 x 16k counters
+	private static final int SKETCH_DIST_PREC = 10;		// HyperLogLog per distance with 1k registers (~3.3% error)
+	
 	// settings
 	private int id;
 	private Align ref;
@@ -20,7 +44,20 @@ public class DistChain {
 	private double heat;
 	
 	private boolean writeSamples = false;
+	private SampleWriter sampleWriter;		// samples are written through this if writeSamples is set
+	private SampleListener sampleListener;
+	private Random rnd;						// source of random numbers (own generator if not set)
+	private String sampleName = null;		// prefix of the sample files (null: "sample" for the first chain only)
 	private boolean rejectNonExact = false;
+	private boolean sketchStats = false;		// if true uses sketches instead of sampleMap
+	private int realignLen = 0;				// window length for the window realignment move (0: disabled)
+	private boolean gibbsChar = false;		// if true the Gibbs character move is used
+	private int multiTry = 1;				// number of tries in the character slide move (1: plain Metropolis)
+	private boolean kinetic = false;		// if true rejection-free (n-fold way) sampling is used
+	private int[] moves;					// types of the moves in use
+	private double[] moveWeights;			// selection probabilities of the moves (null: uniform)
+	private double[] moveCum;				// cumulative selection probabilities
+	private double joinPerBreak = 1;		// ratio of the selection probabilities of join and break
 
 	// current state
 	private Align curAli;
@@ -30,12 +67,53 @@ public class DistChain {
 	// util
 	private int[] gapCol;
 	private int[] rows;
+	private AlignWin win;
+	private AlignWin rwin;			// window realignment working data
+	private int[][] rwCols;
+	private int[][] rwOld;
+	private int[] rwCnts;
+	private int[] rwStarts;
+	private AlignCol[] gcCands = new AlignCol[16];	// Gibbs character move working data
+	private int[] gcDists = new int[16];
+	private double[] gcWeights = new double[16];
+	private AlignCol[] mtCols;				// multiple-try slide move working data
+	private int[] mtRows;
+	private int[] mtDists;
+	private double[] mtWeights;
+	private KineticMoves kinMoves;			// rejection-free sampling working data
+	private double[] kinRates = new double[16];	// total rates of the active move buckets
+	private double kinTotal;
+	private double[] kinAccs;				// distance change -> acceptance ratio (cached per state)
+	private int[] kinAccStamps;
+	private int kinStamp;
+	private long kinWait = -1;				// steps to stay in the current state (-1: to be drawn)
+	private int lastMove;					// index of the last move (kinetic: bucket type), for verification
+	private boolean timeMoves = false;		// if true a sample of the moves is timed for the metrics
+	private Histogram[] moveTimes;			// move -> times in ns (see Metrics)
+	private int timeCnt;
+	private boolean adapting = false;		// move weight adaptation working data
+	private double[] adGain;
+	private long[] adTime;
+	private Verifier verifier;				// runtime verification (null: disabled)
+	private long verifyLeft;				// steps until the next check
+	private long verifyNext;				// steps between the previous and the next check
+	private long verifyStep;				// steps made until the previous check
+	private int strictLeft = 0;				// checks left in inline mode after a drift
+	private boolean swapped = false;		// if true the state was swapped with another chain since the last check
+	private volatile boolean verifyDue = false;		// set by the verifier if a check is due by time
+	private volatile boolean resync = false;		// set by the verifier if a drift was found
 	
 	// statistics
-	HashMap<Integer,Integer> distCnts;
-	HashMap<Integer,Integer> distUniqs;
-	HashMap<String,Integer> sampleMap;
+	Histogram distCnts;			// distance -> number of steps spent at it
+	Histogram distUniqs;		// distance -> number of distinct alignments sampled at it (exact mode)
+	HyperLogLog[] distSketches;	// (in sketch mode) distance -> distinct alignments sampled at it (null: none)
+	HashCounter sampleMap;		// alignment hash -> number of times sampled
+	HyperLogLog seenSketch;		// (in sketch mode) number of distinct alignments sampled
+	CountSketch cntSketch;		// (in sketch mode) alignment hash -> number of times sampled
 	int totalSamples;
+	AutoCorr distCorr = new AutoCorr(AC_BATCHES);	// autocorrelation of the distance trace
+	AutoCorr hashCorr = new AutoCorr(AC_BATCHES);	// autocorrelation of an alignment hash bit
+	private long traceStart;					// time the traces were (re)started at
 	int maxCnt;
 	int maxDist;
 	
@@ -48,9 +126,22 @@ public class DistChain {
 	private CntGroup joinCol = new CntGroup("joinCol");
 	private Counter jcNoMoves = joinCol.nc("jcNoMoves"), jcBadMove = joinCol.nc("jcBadMove"),
 					jcReject = joinCol.nc("jcReject"), jcAccept = joinCol.nc("jcAccept");
+	private CntGroup winRealign = new CntGroup("winRealign");
+	private Counter wrNoMoves = winRealign.nc("wrNoMoves"), wrReject = winRealign.nc("wrReject"),
+					wrAccept = winRealign.nc("wrAccept");
+	private CntGroup gibbsCh = new CntGroup("gibbsChar");
+	private Counter gcNoMoves = gibbsCh.nc("gcNoMoves"), gcSing = gibbsCh.nc("gcSing"),
+					gcStay = gibbsCh.nc("gcStay"), gcMove = gibbsCh.nc("gcMove");
+	private CntGroup mtmSlide = new CntGroup("mtmSlide");
+	private Counter mtStay = mtmSlide.nc("mtStay"), mtReject = mtmSlide.nc("mtReject"),
+					mtAccept = mtmSlide.nc("mtAccept");
+	private CntGroup kineticMoves = new CntGroup("kineticMoves");
+	private Counter kmSlide = kineticMoves.nc("kmSlide"), kmBreak = kineticMoves.nc("kmBreak"),
+					kmJoin = kineticMoves.nc("kmJoin");
+	private long kinSteps;
 	CntGroup chainSwap = new CntGroup("chainSwap");
 	Counter csReject = chainSwap.nc("csReject"), csAccept = chainSwap.nc("csAccept");
-	private CntGroup[] cntGroups = new CntGroup[] { slideChar, breakCol, joinCol, chainSwap };
+	private CntGroup[] cntGroups;
 
 	public DistChain(int id, Align ref, DistCalc distCalc, int targetDist, double heat) {
 		this.id = id;
@@ -65,41 +156,396 @@ public class DistChain {
 		return this;
 	}
 	
+	/**
+	 * Sets the writer the samples are passed to (if writing is enabled). Several chains
+	 * may share a writer.
+	 */
+	public DistChain setSampleWriter(SampleWriter sampleWriter) {
+		this.sampleWriter = sampleWriter;
+		return this;
+	}
+	
+	/**
+	 * Sets the listener receiving the samples of the chain (the same chains report samples
+	 * as write them), or null for none.
+	 */
+	public DistChain setSampleListener(SampleListener sampleListener) {
+		this.sampleListener = sampleListener;
+		return this;
+	}
+	
+	/**
+	 * Sets the source of random numbers of the chain, e.g. to run chains on separate
+	 * threads. By default the chain creates its own generator.
+	 */
+	public DistChain setRandom(Random rnd) {
+		this.rnd = rnd;
+		return this;
+	}
+	
+	/**
+	 * Makes the chain write its samples (if enabled) to files <code>name_N.fsa</code> and
+	 * tag the sample lines printed with <code>name</code>. By default only the first chain
+	 * writes its samples, to files <code>sampleN.fsa</code>.
+	 */
+	public DistChain setSampleName(String name) {
+		sampleName = name;
+		return this;
+	}
+	
+	String getSampleName() {
+		return sampleName;
+	}
+	
+	int getId() {
+		return id;
+	}
+	
+	/**
+	 * Enables/disables timing a sample of the moves for {@link Metrics} (disabled by default).
+	 */
+	public DistChain setTimeMoves(boolean timeMoves) {
+		this.timeMoves = timeMoves;
+		return this;
+	}
+	
+	/**
+	 * Returns the time histograms of the moves (null if not timed), see {@link Metrics}.
+	 */
+	Histogram[] getMoveTimes() {
+		return moveTimes;
+	}
+	
+	/**
+	 * Returns the name of move <code>k</code> (of the moves in use, in the order of the
+	 * time histograms).
+	 */
+	String getMoveName(int k) {
+		if(!kinetic)
+			return cntGroups[k].getName();
+		switch(k) {
+		case KineticMoves.SLIDE:
+			return kmSlide.getName();
+		case KineticMoves.BREAK:
+			return kmBreak.getName();
+		default:
+			return kmJoin.getName();
+		}
+	}
+	
+	/**
+	 * Returns the number of steps made since the statistics were reset.
+	 */
+	long getTotalSteps() {
+		return distCnts.getTotal();
+	}
+	
+	/**
+	 * Sets the verifier checking the tracked state of the chain periodically (null: no
+	 * verification).
+	 */
+	public DistChain setVerifier(Verifier verifier) {
+		this.verifier = verifier;
+		if(verifier != null) {
+			verifier.add(this);
+			verifyNext = verifyLeft = verifier.getPeriodSteps() > 0 ? verifier.getPeriodSteps() : Long.MAX_VALUE;
+		}
+		return this;
+	}
+	
+	/**
+	 * Returns true if the samples of this chain are written/reported.
+	 */
+	boolean isOutput() {
+		return sampleName != null || id == 0;
+	}
+	
 	public DistChain setRejectNonExact(boolean rejectNonExact) {
 		this.rejectNonExact = rejectNonExact;
 		return this;
 	}
 	
+	/**
+	 * Enables/disables bounded-memory statistics: if enabled, the number of distinct
+	 * alignments sampled and their frequencies are estimated using fixed-size sketches
+	 * instead of being counted exactly in a map growing with the number of samples. The
+	 * distinct alignments at each distance are estimated by a small sketch per distance
+	 * sampled at.
+	 */
+	public DistChain setSketchStats(boolean sketchStats) {
+		this.sketchStats = sketchStats;
+		return this;
+	}
+	
+	/**
+	 * Enables the window realignment move, which resamples the placement of gaps
+	 * within a random window of <code>len</code> columns.
+	 * @param len window length (0 to disable the move)
+	 */
+	public DistChain setRealignWin(int len) {
+		realignLen = len;
+		return this;
+	}
+	
+	/**
+	 * Enables/disables the Gibbs character move, which moves a character to any
+	 * position within its gap run, drawn from the conditional distribution.
+	 */
+	public DistChain setGibbsChar(boolean gibbsChar) {
+		this.gibbsChar = gibbsChar;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of proposals drawn in each character slide step. If more than one,
+	 * multiple-try Metropolis is used: the proposals are scored in a batch and one of them
+	 * is chosen in proportion to its likelihood, which makes rejections rarer at low heats.
+	 * @param k number of tries (1 for the plain slide move)
+	 */
+	public DistChain setMultiTry(int k) {
+		multiTry = k;
+		return this;
+	}
+	
+	/**
+	 * Enables/disables rejection-free (n-fold way) sampling with the slide, break and join
+	 * moves. All possible moves and their transition probabilities are kept up to date, so
+	 * the number of steps spent in the current state can be drawn directly from a geometric
+	 * distribution and the next state chosen in proportion to the transition probabilities.
+	 * The resulting chain is the same as with the rejecting moves, while the work per state
+	 * change does not depend on the acceptance rate.
+	 */
+	public DistChain setKinetic(boolean kinetic) {
+		this.kinetic = kinetic;
+		return this;
+	}
+	
+	/**
+	 * Collects the move types in use with their counter groups.
+	 */
+	private void initMoves() {
+		if(kinetic) {
+			moves = new int[] { MOVE_SLIDE, MOVE_BREAK, MOVE_JOIN };
+			cntGroups = new CntGroup[] { kineticMoves, chainSwap };
+			return;
+		}
+		int n = 3+(realignLen > 0 ? 1 : 0)+(gibbsChar ? 1 : 0);
+		moves = new int[n];
+		cntGroups = new CntGroup[n+1];
+		n = 0;
+		moves[n] = MOVE_SLIDE; cntGroups[n++] = multiTry > 1 ? mtmSlide : slideChar;
+		moves[n] = MOVE_BREAK; cntGroups[n++] = breakCol;
+		moves[n] = MOVE_JOIN; cntGroups[n++] = joinCol;
+		if(realignLen > 0) {
+			moves[n] = MOVE_REALIGN; cntGroups[n++] = winRealign;
+		}
+		if(gibbsChar) {
+			moves[n] = MOVE_GIBBS; cntGroups[n++] = gibbsCh;
+		}
+		cntGroups[n] = chainSwap;
+	}
+	
+	/**
+	 * Starts collecting the performance of the moves (accepted changes per CPU time) for
+	 * adapting the move mixture, see {@link #updateMoveWeights()}. To be used during
+	 * burn-in only, as the chain is not reversible while the mixture changes.
+	 */
+	public void startAdapt() {
+		adapting = true;
+		adGain = new double[moves.length];
+		adTime = new long[moves.length];
+	}
+	
+	/**
+	 * Sets the move weights proportional to the accepted distance change per nanosecond
+	 * of each move measured since {@link #startAdapt()}. Accepted moves count one more
+	 * than their distance change, as moves not changing the distance still explore the
+	 * alignments at a distance. A share of {@link #ADAPT_MIN_SHARE} is distributed
+	 * uniformly so that all moves remain possible and the chain irreducible.
+	 */
+	public void updateMoveWeights() {
+		int n = moves.length;
+		double[] rates = new double[n];
+		double sum = 0;
+		for(int i = 0; i < n; i++)
+			sum += rates[i] = adTime[i] > 0 ? adGain[i]/adTime[i] : 0;
+		double[] w = new double[n];
+		for(int i = 0; i < n; i++)
+			w[i] = ADAPT_MIN_SHARE/n+(1-ADAPT_MIN_SHARE)*(sum > 0 ? rates[i]/sum : 1.0/n);
+		setMoveWeights(w);
+	}
+	
+	/**
+	 * Updates the move weights a last time and stops adaptation, so that the mixture is
+	 * fixed (and detailed balance holds) while sampling.
+	 */
+	public void freezeMoves() {
+		if(adapting)
+			updateMoveWeights();
+		adapting = false;
+	}
+	
+	private void setMoveWeights(double[] w) {
+		moveWeights = w;
+		moveCum = new double[w.length];
+		double cum = 0;
+		for(int i = 0; i < w.length; i++) {
+			cum += w[i];
+			moveCum[i] = cum;
+			if(moves[i] == MOVE_BREAK)
+				joinPerBreak = 1/w[i];
+		}
+		for(int i = 0; i < w.length; i++)
+			if(moves[i] == MOVE_JOIN)
+				joinPerBreak *= w[i];
+	}
+	
+	/**
+	 * Returns the selection probabilities of the moves, in the order of the counter
+	 * groups of the moves.
+	 */
+	public double[] getMoveWeights() {
+		if(moveWeights != null)
+			return moveWeights;
+		double[] w = new double[moves.length];
+		Arrays.fill(w, 1.0/moves.length);
+		return w;
+	}
+
 	public void init() {
-		// reset counters
-		for(CntGroup group : cntGroups)
-			group.reset();
-		distCnts = new HashMap<Integer, Integer>();
-		distUniqs = new HashMap<Integer, Integer>();
-		sampleMap = new HashMap<String, Integer>();
-		totalSamples = 0;
-		maxCnt = 0;
+		if(rnd == null)
+			rnd = new Random();
+		initMoves();
+		moveWeights = null;
+		moveCum = null;
+		joinPerBreak = 1;
+		adapting = false;
+		resetStats();
 		
 		// working arrays
 		gapCol = new int[ref.first.inds.length];
 		Arrays.fill(gapCol, -1);
 		rows = new int[gapCol.length];
+		win = new AlignWin(null, 2);
+		if(realignLen > 0) {
+			rwin = new AlignWin(null, realignLen);
+			rwCols = new int[realignLen][gapCol.length];
+			rwOld = new int[realignLen][];
+			rwCnts = new int[gapCol.length];
+			rwStarts = new int[gapCol.length];
+		}
+		if(multiTry > 1) {
+			mtCols = new AlignCol[multiTry];
+			mtRows = new int[multiTry];
+			mtDists = new int[multiTry];
+			mtWeights = new double[multiTry];
+		}
 
 		// current state
-		curAli = new Align(ref.toRaw());
+		curAli = new Align(ref);
 		curDist = 0;
 		curPi = logPi(curDist);
+		if(kinetic) {
+			kinMoves = new KineticMoves(curAli, distCalc);
+			kinAccs = new double[2*kinMoves.getMaxDelta()+1];
+			kinAccStamps = new int[kinAccs.length];
+			kinStamp = 0;
+		}
+		kinWait = -1;
+		kinSteps = 0;
+		moveTimes = null;
+		if(timeMoves) {
+			moveTimes = new Histogram[moves.length];
+			for(int k = 0; k < moves.length; k++)
+				moveTimes[k] = Metrics.newTimeHistogram();
+		}
 	}
 	
+	/**
+	 * Resets the counters, histograms and sample statistics.
+	 */
+	private void resetStats() {
+		for(CntGroup group : cntGroups)
+			group.reset();
+		distCnts = new Histogram(distCalc.getMaxD());
+		distUniqs = new Histogram(distCalc.getMaxD());
+		if(sketchStats) {
+			sampleMap = null;
+			distSketches = new HyperLogLog[distCalc.getMaxD()+1];
+			seenSketch = new HyperLogLog(SKETCH_PREC);
+			cntSketch = new CountSketch(SKETCH_DEPTH, SKETCH_LOG_WIDTH);
+		} else {
+			sampleMap = new HashCounter();
+		}
+		totalSamples = 0;
+		maxCnt = 0;
+		resetTraces();
+	}
+	
+	/**
+	 * Walks the chain from its current state to the target distance at a very low heat,
+	 * where moves away from the target are practically never accepted, so the distance
+	 * approaches the target about as fast as the moves allow (tracking the distance
+	 * incrementally as usual). The walk ends when the target is reached or passed or the
+	 * distance has not approached it for a while. The heat is restored and the statistics
+	 * are reset afterwards.
+	 * @return the number of steps made
+	 */
+	public long quenchToTarget() {
+		double oldHeat = heat;
+		changeHeat(QUENCH_HEAT);
+		int side = Integer.signum(targetDist-curDist), best = Math.abs(targetDist-curDist);
+		long steps = 0, last = 0;
+		while(side != 0 && Integer.signum(targetDist-curDist) == side && steps-last < QUENCH_STALL) {
+			makeStep();
+			steps++;
+			if(Math.abs(targetDist-curDist) < best) {
+				best = Math.abs(targetDist-curDist);
+				last = steps;
+			}
+		}
+		changeHeat(oldHeat);
+		resetStats();
+		return steps;
+	}
+	
+	/**
+	 * Sets the current state of the chain to a copy of <code>align</code>.
+	 */
 	public void jumpTo(Align align) {
-		curAli = new Align(align.toRaw());
+		curAli.copyFrom(align);
 		curDist = distCalc.dist(curAli);
 		curPi = logPi(curDist);
+		if(kinetic)
+			kinMoves.rebuild();
+		kinWait = -1;
+	}
+	
+	/**
+	 * Sets the current state of the chain to a copy of <code>align</code>, whose
+	 * distance from the reference is known to be <code>dist</code>.
+	 */
+	public void jumpTo(Align align, int dist) {
+		curAli.copyFrom(align);
+		curDist = dist;
+		curPi = logPi(curDist);
+		if(kinetic)
+			kinMoves.rebuild();
+		kinWait = -1;
 	}
 	
 	public void changeHeat(double newHeat) {
 		heat = newHeat;
+		refreshPi();
+	}
+	
+	/**
+	 * Recalculates the likelihood of the current state, to be called when the target
+	 * distribution has changed.
+	 */
+	protected void refreshPi() {
 		curPi = logPi(curDist);
+		kinWait = -1;
 	}
 
 	public void makeStep() {
@@ -109,22 +555,63 @@ public class DistChain {
 				throw new Error("Inconsistency in distance calculation");
 			if(curPi != logPi(curDist))
 				throw new Error("Inconsistency in likelihood calculation: "+logPi(curDist));
+			if(kinetic)
+				kinMoves.checkCons();
+		}
+		
+		if(kinetic) {
+			if(kinWait < 0)
+				drawWait();
+			if(kinWait > 0)
+				kinWait--;
+			else
+				kineticJump();
+			kinSteps++;
+			record(1);
+			if(verifier != null)
+				verifyAfter(1);
+			return;
 		}
 
-		int type = Utils.generator.nextInt(3);
-		switch (type) {
-		case 0:
-			slideChar(); break;
-		case 1:
-			breakCol(); break;
+		int m;
+		if(moveCum == null) {
+			m = rnd.nextInt(moves.length);
+		} else {
+			double u = rnd.nextDouble();
+			for(m = 0; m < moves.length-1 && u >= moveCum[m]; m++)
+				;
+		}
+		int oldDist = curDist, acc;
+		lastMove = m;
+		boolean timed = adapting || (moveTimes != null && (++timeCnt & Metrics.TIME_MASK) == 0);
+		long time = timed ? System.nanoTime() : 0;
+		switch (moves[m]) {
+		case MOVE_SLIDE:
+			acc = multiTry > 1 ? mtmSlide() : slideChar(); break;
+		case MOVE_BREAK:
+			acc = breakCol(); break;
+		case MOVE_JOIN:
+			acc = joinCol(); break;
+		case MOVE_REALIGN:
+			acc = realignWin(); break;
 		default:
-			joinCol();
+			acc = gibbsChar();
+		}
+		if(timed) {
+			time = System.nanoTime()-time;
+			if(adapting) {
+				adTime[m] += time;
+				if(acc > 0)
+					adGain[m] += 1+Math.abs(curDist-oldDist);
+			}
+			if(moveTimes != null)
+				moveTimes[m].inc(Metrics.timeBucket(time));
 		}
 
 		// save distance distribution info
-		Integer cnt = distCnts.get(curDist);
-		cnt = cnt == null ? 1 : cnt+1;
-		distCnts.put(curDist, cnt);
+		record(1);
+		if(verifier != null)
+			verifyAfter(1);
 		
 		if(Utils.DEBUG) {
 			curAli.checkCons();
@@ -135,51 +622,302 @@ public class DistChain {
 		}
 	}
 	
+	/**
+	 * Makes <code>n</code> steps. In rejection-free mode, steps spent in the same state are
+	 * skipped over at once.
+	 */
+	public void makeSteps(int n) {
+		if(!kinetic) {
+			for(int i = 0; i < n; i++)
+				makeStep();
+			return;
+		}
+		while(n > 0) {
+			if(kinWait < 0)
+				drawWait();
+			if(kinWait >= n) {
+				kinWait -= n;
+				kinSteps += n;
+				record(n);
+				if(verifier != null)
+					verifyLeft -= n;
+				return;
+			}
+			record(kinWait);
+			long made = kinWait+1;
+			kinSteps += made;
+			n -= made;
+			kineticJump();
+			record(1);
+			if(verifier != null)
+				verifyAfter(made);
+		}
+	}
+	
+	/**
+	 * Counts <code>n</code> steps for the verifier and checks the state if a check is due.
+	 */
+	private void verifyAfter(long n) {
+		if((verifyLeft -= n) <= 0 || verifyDue)
+			verify();
+	}
+	
+	/**
+	 * Makes a check for the verifier: the likelihood (and in rejection-free mode the
+	 * collected moves) are checked here, the alignment and distance on a copy by the
+	 * verifier. After a drift was found, the distance is resynced and the alignment and
+	 * distance are checked here after every step for a while.
+	 */
+	private void verify() {
+		long step = verifyStep += verifyNext-verifyLeft;
+		String move = moveName()+(swapped ? " (state swapped in since the previous check)" : "");
+		verifyDue = false;
+		swapped = false;
+		if(resync) {
+			resync = false;
+			curDist = distCalc.dist(curAli);
+			refreshPi();
+			strictLeft = VERIFY_STRICT_STEPS;
+		} else if(strictLeft > 0) {
+			strictLeft--;
+			String msg = null;
+			try {
+				curAli.checkCons();
+			} catch (Error e) {
+				msg = e.getMessage();
+			}
+			int dist = distCalc.dist(curAli);
+			if(msg == null && dist != curDist)
+				msg = "tracked dist "+curDist+", actual "+dist;
+			if(msg != null) {
+				verifier.drift(this, step, move, msg, false);
+				curDist = dist;
+				refreshPi();
+			} else {
+				verifier.passed();
+			}
+		} else {
+			if(curPi != logPi(curDist)) {
+				verifier.drift(this, step, move, "tracked log likelihood "+curPi+", actual "+logPi(curDist), false);
+				refreshPi();
+			}
+			if(kinetic) {
+				try {
+					kinMoves.checkCons();
+				} catch (Error e) {
+					verifier.drift(this, step, move, e.getMessage(), false);
+					kinMoves.rebuild();
+					kinWait = -1;
+				}
+			}
+			verifier.check(this, step, move, curDist, curAli.copy());
+		}
+		verifyNext = verifyLeft = strictLeft > 0 ? 1 :
+				verifier.getPeriodSteps() > 0 ? verifier.getPeriodSteps() : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Returns the name of the last move made.
+	 */
+	private String moveName() {
+		return getMoveName(lastMove);
+	}
+	
+	/**
+	 * Makes the chain check its state at its next step, called by the verifier.
+	 */
+	void requestVerify() {
+		verifyDue = true;
+	}
+	
+	/**
+	 * Makes the chain resync its distance and check every step for a while, called by the
+	 * verifier after finding a drift.
+	 */
+	void requestResync() {
+		resync = true;
+		verifyDue = true;
+	}
+	
+	/**
+	 * Records that the chain spent <code>cnt</code> steps in the current state.
+	 */
+	protected void record(long cnt) {
+		distCnts.inc(curDist, cnt);
+		distCorr.add(curDist, cnt);
+		hashCorr.add(curAli.getHashHi() & 1, cnt);
+	}
+	
+	/**
+	 * Restarts the autocorrelation estimation of the distance and hash traces, e.g. at
+	 * the end of burn-in.
+	 */
+	public void resetTraces() {
+		distCorr.reset();
+		hashCorr.reset();
+		traceStart = System.nanoTime();
+	}
+	
+	/**
+	 * Returns the time since the traces were restarted in ns (for moving the chain
+	 * between processes, see {@link #setTraceTime(long)}).
+	 */
+	long getTraceTime() {
+		return System.nanoTime()-traceStart;
+	}
+	
+	void setTraceTime(long nanos) {
+		traceStart = System.nanoTime()-nanos;
+	}
+	
+	/**
+	 * Returns the estimated autocorrelation time of the chain in steps, taken as the larger
+	 * of those of the distance and of a hash bit of the alignment (the latter also reflecting
+	 * the mixing among alignments at the same distance). NaN if not available (yet).
+	 */
+	public double getIat() {
+		double dist = distCorr.getIat(), hash = hashCorr.getIat();
+		if(Double.isNaN(hash))
+			return dist;
+		if(Double.isNaN(dist))
+			return hash;
+		return Math.max(dist, hash);
+	}
+	
+	/**
+	 * Returns true if the batches of the autocorrelation estimation are long enough
+	 * compared to the estimated autocorrelation time for the estimate to be trusted.
+	 */
+	public boolean isIatReliable() {
+		double iat = getIat();
+		return !Double.isNaN(iat) && distCorr.getBatchLen() >= AC_MIN_BATCH_RATIO*iat;
+	}
+	
+	/**
+	 * Returns the autocorrelation estimator of the distance trace.
+	 */
+	public AutoCorr getDistCorr() {
+		return distCorr;
+	}
+	
+	/**
+	 * Returns the effective sample size of the steps since the last {@link #resetTraces()}.
+	 */
+	public double getEss() {
+		return distCorr.getCount()/getIat();
+	}
+	
+	/**
+	 * Calculates the transition probabilities of the possible moves and draws the number
+	 * of steps to stay in the current state.
+	 */
+	private void drawWait() {
+		calcRates();
+		double p = kinTotal/moves.length;	// probability of leaving the current state in a step
+		if(p >= 1)
+			kinWait = 0;
+		else if(p <= 0)
+			kinWait = Long.MAX_VALUE;
+		else
+			kinWait = (long)(Math.log(1-rnd.nextDouble())/Math.log(1-p));
+	}
+	
+	/**
+	 * Calculates the transition probabilities of the possible move buckets and their total.
+	 */
+	private void calcRates() {
+		int n = kinMoves.getActiveCnt(), len = curAli.cols.size(), sing = curAli.singCols.size();
+		if(kinRates.length < n)
+			kinRates = new double[Math.max(n, 2*kinRates.length)];
+		int off = kinMoves.getMaxDelta();
+		double total = 0;
+		kinStamp++;
+		for(int i = 0; i < n; i++) {
+			int b = kinMoves.getActive(i), key = kinMoves.bucketKey(b), delta = kinMoves.bucketDelta(b);
+			if(kinAccStamps[delta+off] != kinStamp) {
+				kinAccStamps[delta+off] = kinStamp;
+				kinAccs[delta+off] = Math.exp(logPi(curDist+delta)-curPi);
+			}
+			double acc = kinAccs[delta+off], rate;
+			// probabilities of proposal and acceptance as in slideChar, breakCol and joinCol
+			switch(kinMoves.bucketType(b)) {
+			case KineticMoves.SLIDE:
+				rate = Math.min(1, acc)/(len-1)/key; break;
+			case KineticMoves.BREAK:
+				rate = Math.min(1, acc*len*key/(sing+(key == 2 ? 2 : 1)))/(2.0*len*key); break;
+			default:
+				rate = Math.min(1, acc*sing/((len-1)*(key+1.0)))/(2.0*sing);
+			}
+			total += kinRates[i] = rate*kinMoves.getBucketSize(b);
+		}
+		kinTotal = total;
+	}
+	
+	/**
+	 * Moves to a state chosen in proportion to the transition probabilities calculated
+	 * by {@link #drawWait()}.
+	 */
+	private void kineticJump() {
+		long time = moveTimes != null && (++timeCnt & Metrics.TIME_MASK) == 0 ? System.nanoTime() : 0;
+		double u = rnd.nextDouble()*kinTotal;
+		int n = kinMoves.getActiveCnt(), i = 0;
+		while(i < n-1 && (u -= kinRates[i]) >= 0)
+			i++;
+		int b = kinMoves.getActive(i);
+		lastMove = kinMoves.bucketType(b);
+		switch(lastMove) {
+		case KineticMoves.SLIDE:
+			kmSlide.inc(); break;
+		case KineticMoves.BREAK:
+			kmBreak.inc(); break;
+		default:
+			kmJoin.inc();
+		}
+		curDist += kinMoves.apply(kinMoves.getMove(b, rnd.nextInt(kinMoves.getBucketSize(b))));
+		curPi = logPi(curDist);
+		kinWait = -1;
+		if(time != 0)
+			moveTimes[lastMove].inc(Metrics.timeBucket(System.nanoTime()-time));
+	}
+	
+	private Align sampleAli;		// first sample, distances of later samples are also written from it
 	private DistCalc sampleDCalc;
 	
 	public boolean sample() {
 		if(rejectNonExact && curDist != targetDist)		// reject sample if distance does not match exactly
 			return false;
-		String key = curAli.toString();
-		Integer cnt = sampleMap.get(key);
-		if(cnt == null) {
-			cnt = 1;
-//			if(sampleMap.size()%100==99)
-//				System.out.println("found: "+(sampleMap.size()+1));
-//			if(sampleMap.size() == 220000)
-//				return true;
+		int cnt;
+		if(sampleMap != null) {
+			cnt = sampleMap.inc(curAli.getHashHi(), curAli.getHashLo());
+			if(cnt == 1) {
+//				if(sampleMap.size()%100==99)
+//					System.out.println("found: "+(sampleMap.size()+1));
+//				if(sampleMap.size() == 220000)
+//					return true;
 
-			Integer cnt2 = distUniqs.get(curDist);
-			cnt2 = cnt2 == null ? 1 : cnt2+1;
-			distUniqs.put(curDist, cnt2);
+				distUniqs.inc(curDist);
+			}
 		} else {
-			cnt++;
+			seenSketch.add(curAli.getHashHi());
+			cnt = cntSketch.inc(curAli.getHashLo());	// estimate
+			if(distSketches[curDist] == null)
+				distSketches[curDist] = new HyperLogLog(SKETCH_DIST_PREC);
+			distSketches[curDist].add(curAli.getHashHi());
 		}
 		if(cnt > maxCnt) {
 			maxCnt = cnt;
 			maxDist = curDist;
 		}
-		sampleMap.put(key, cnt);
 		
-		if(writeSamples && id == 0) {
+		if(writeSamples && sampleWriter != null && isOutput()) {
+			// the copy is formatted and written on the writer's thread
+			Align ali = new Align(curAli);
 			if(totalSamples == 0)
-				sampleDCalc = new DistCalc(new Align(curAli.toRaw()));
-			
-			int d1 = distCalc.dist(curAli);		// distance from ref
-			int d2 = sampleDCalc.dist(curAli);	// distance from first sample
-//			sampleDCalc = new DistCalc(new Align(curAli.toRaw()));
-			System.out.println((totalSamples+1)+"\t"+d1+"\t"+
-					String.format(Locale.US, "%.2f", distCalc.dist2acc(d1))+"\t"+d2+"\t"+
-					String.format(Locale.US, "%.2f", sampleDCalc.dist2acc(d2)));
-			
-			// write samples to files
-			try {
-				BufferedWriter w = new BufferedWriter(new FileWriter("sample"+(totalSamples+1)+".fsa"));
-				w.write(key);
-				w.close();
-			} catch (Exception e) {
-			}
+				sampleDCalc = new DistCalc(sampleAli = ali);
+			sampleWriter.add(sampleName, totalSamples+1, curDist, ali, sampleDCalc);
 		}
+		if(sampleListener != null && isOutput())
+			sampleListener.sampled(id, curDist, curAli);
 
 		totalSamples++;
 		return true;
@@ -192,33 +930,223 @@ public class DistChain {
 	public int getTargetDist() {
 		return targetDist;
 	}
+	
+	public int getCurDist() {
+		return curDist;
+	}
+	
+	/**
+	 * Returns the number of samples taken.
+	 */
+	public int getTotalSamples() {
+		return totalSamples;
+	}
+	
+	public Align getCurAli() {
+		return curAli;
+	}
+
+	public Histogram getDistCnts() {
+		return distCnts;
+	}
+	
+	/**
+	 * Returns the numbers of distinct alignments sampled at each distance (not counted in
+	 * sketch mode, see {@link #getDistUniqSketch(int)}).
+	 */
+	public Histogram getDistUniqs() {
+		return distUniqs;
+	}
+	
+	/**
+	 * Returns true if the statistics are estimated by sketches.
+	 */
+	public boolean isSketchStats() {
+		return sketchStats;
+	}
+	
+	/**
+	 * Returns the (in sketch mode) estimator of the number of distinct alignments sampled
+	 * at distance <code>d</code>, null if not sampled at it.
+	 */
+	public HyperLogLog getDistUniqSketch(int d) {
+		return distSketches[d];
+	}
 
 	public CntGroup[] getCntGroups() {
 		return cntGroups;
 	}
 	
+	/**
+	 * Writes the complete state of the chain (current alignment, heat, move weights,
+	 * statistics and counters), so that the run can be continued exactly after reading
+	 * it back with {@link #readState(DataInput)}.
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(targetDist);
+		out.writeDouble(heat);
+		out.writeInt(curDist);
+		curAli.writeState(out);
+		out.writeBoolean(moveWeights != null);
+		if(moveWeights != null)
+			for(double w : moveWeights)
+				out.writeDouble(w);
+		out.writeBoolean(adapting);
+		if(adapting) {
+			for(int i = 0; i < moves.length; i++) {
+				out.writeDouble(adGain[i]);
+				out.writeLong(adTime[i]);
+			}
+		}
+		if(kinetic) {
+			kinMoves.writeState(out);
+			out.writeLong(kinWait);
+			out.writeLong(kinSteps);
+		}
+		
+		distCnts.writeBinary(out);
+		distUniqs.writeBinary(out);
+		if(sampleMap != null) {
+			sampleMap.writeState(out);
+		} else {
+			seenSketch.writeState(out);
+			cntSketch.writeState(out);
+			int n = 0;
+			for(HyperLogLog s : distSketches)
+				if(s != null)
+					n++;
+			out.writeInt(n);
+			for(int d = 0; d < distSketches.length; d++) {
+				if(distSketches[d] != null) {
+					out.writeInt(d);
+					distSketches[d].writeState(out);
+				}
+			}
+		}
+		out.writeInt(totalSamples);
+		out.writeInt(maxCnt);
+		out.writeInt(maxDist);
+		distCorr.writeState(out);
+		hashCorr.writeState(out);
+		for(CntGroup group : cntGroups)
+			group.writeState(out);
+		out.writeBoolean(sampleAli != null);
+		if(sampleAli != null)
+			sampleAli.writeState(out);
+	}
+	
+	/**
+	 * Restores the state written by {@link #writeState(DataOutput)} into an initialized
+	 * chain with the same settings.
+	 */
+	public void readState(DataInput in) throws IOException {
+		if(in.readInt() != targetDist)
+			throw new IOException("target distance mismatch in chain "+(id+1));
+		heat = in.readDouble();
+		curDist = in.readInt();
+		curPi = logPi(curDist);
+		curAli.readState(in);
+		if(in.readBoolean()) {
+			double[] w = new double[moves.length];
+			for(int i = 0; i < w.length; i++)
+				w[i] = in.readDouble();
+			setMoveWeights(w);
+		}
+		adapting = in.readBoolean();
+		if(adapting) {
+			adGain = new double[moves.length];
+			adTime = new long[moves.length];
+			for(int i = 0; i < moves.length; i++) {
+				adGain[i] = in.readDouble();
+				adTime[i] = in.readLong();
+			}
+		}
+		if(kinetic) {
+			kinMoves.readState(in);
+			kinWait = in.readLong();
+			kinSteps = in.readLong();
+			if(kinWait >= 0)
+				calcRates();
+		}
+		
+		distCnts = Histogram.readBinary(in);
+		distUniqs = Histogram.readBinary(in);
+		if(sampleMap != null) {
+			sampleMap.readState(in);
+		} else {
+			seenSketch.readState(in);
+			cntSketch.readState(in);
+			Arrays.fill(distSketches, null);
+			for(int n = in.readInt(); n > 0; n--) {
+				int d = in.readInt();
+				if(d < 0 || d >= distSketches.length)
+					throw new IOException("bad distance "+d+" in chain "+(id+1));
+				distSketches[d] = new HyperLogLog(SKETCH_DIST_PREC);
+				distSketches[d].readState(in);
+			}
+		}
+		totalSamples = in.readInt();
+		maxCnt = in.readInt();
+		maxDist = in.readInt();
+		distCorr.readState(in);
+		hashCorr.readState(in);
+		for(CntGroup group : cntGroups)
+			group.readState(in);
+		if(in.readBoolean()) {
+			sampleAli = new Align(ref);
+			sampleAli.readState(in);
+			sampleDCalc = new DistCalc(sampleAli);
+		}
+		traceStart = System.nanoTime();
+	}
+	
 	public void printStats() {
 		System.out.println("\n** Chain "+(id+1)+" **\n");
+		
+		double iat = getIat(), secs = (System.nanoTime()-traceStart)/1e9;
+		System.out.println("Autocorrelation time (steps): dist "+String.format(Locale.US, "%.1f", distCorr.getIat())+
+				" hash "+String.format(Locale.US, "%.1f", hashCorr.getIat())+" (batch length "+distCorr.getBatchLen()+")");
+		System.out.println("ESS: "+String.format(Locale.US, "%.1f", getEss())+" ("+
+				String.format(Locale.US, "%.1f", getEss()/secs)+"/s) steps per independent sample: "+
+				String.format(Locale.US, "%.1f", iat));
+		if(kinetic && kineticMoves.getCnt() > 0)
+			System.out.println("State changes: "+kineticMoves.getCnt()+" steps per change: "+
+					String.format(Locale.US, "%.2f", (double)kinSteps/kineticMoves.getCnt()));
 
 //		System.out.println("\nDistance counts:\n");
-//		List<Integer> keys = new ArrayList<Integer>(distCnts.keySet());
-//		Collections.sort(keys);
-//		for(int dist : keys)
-//			System.out.println(dist+": "+distCnts.get(dist)+" uniq: "+distUniqs.get(dist));
+//		for(int dist = 0; dist <= distCnts.getMaxValue(); dist++)
+//			if(distCnts.get(dist) > 0)
+//				System.out.println(dist+": "+distCnts.get(dist)+" uniq: "+distUniqs.get(dist));
 		
-		SimpleStats st = new SimpleStats("abs diff");
-		double goal = totalSamples/(double)sampleMap.size();
-		System.out.println("Alignments seen: "+sampleMap.size()+" goal: "+goal);
-		for(String key : sampleMap.keySet()) {
-			double ad = Math.abs(((double)sampleMap.get(key)-goal)/goal*100);
-			st.addData(ad);
-		}
-		System.out.println(st);
-		if(maxCnt > 0)
-			System.out.println("max cnt: "+maxCnt+" dist: "+maxDist);
-//		if(amax != null)
-//			printAli(amax);
-		System.out.println("ref cnt: "+sampleMap.get(ref.toString()));
+		if(sampleMap != null) {
+			SimpleStats st = new SimpleStats("abs diff");
+			double goal = totalSamples/(double)sampleMap.size();
+			System.out.println("Alignments seen: "+sampleMap.size()+" goal: "+goal);
+			for(int cnt : sampleMap.getCounts()) {
+				double ad = Math.abs(((double)cnt-goal)/goal*100);
+				st.addData(ad);
+			}
+			System.out.println(st);
+			if(maxCnt > 0)
+				System.out.println("max cnt: "+maxCnt+" dist: "+maxDist);
+//			if(amax != null)
+//				printAli(amax);
+			System.out.println("ref cnt: "+sampleMap.get(ref.getHashHi(), ref.getHashLo()));
+		} else {
+			// relative deviation from goal is estimated in rms from the second frequency moment:
+			// sum((cnt-goal)^2)/seen = F2/seen-goal^2 as sum(cnt) = totalSamples = seen*goal
+			double seen = seenSketch.estimate(), f2 = cntSketch.estimateF2();
+			double goal = totalSamples/seen;
+			System.out.println("Alignments seen (estimate): "+String.format(Locale.US, "%.0f", seen)+
+					" (+-"+String.format(Locale.US, "%.2f", seenSketch.getRelError()*100)+"%) goal: "+goal);
+			double rms = Math.sqrt(Math.max(0, f2/seen-goal*goal))/goal*100;
+			System.out.println("rms diff (estimate): "+rms+" (F2 +-"+
+					String.format(Locale.US, "%.2f", cntSketch.getF2RelError()*100)+"%)");
+			if(maxCnt > 0)
+				System.out.println("max cnt (estimate): "+maxCnt+" dist: "+maxDist);
+			System.out.println("ref cnt (estimate): "+cntSketch.estimate(ref.getHashLo())+
+					" (+-"+String.format(Locale.US, "%.1f", cntSketch.getFreqError(f2))+")");
+		}
 //		List<String> samps = new ArrayList<String>(sampleMap.keySet());
 //		Collections.sort(samps, new Comparator<String>() {
 //			@Override
@@ -254,7 +1182,7 @@ public class DistChain {
 //	}
 
 	public int slideChar() {
-		AlignWin win = curAli.randWin(2);
+		curAli.randWin(win, rnd);
 		AlignCol col1 = win.first, col2 = win.last;
 		int[] inds1 = col1.inds, inds2 = col2.inds;
 		int s = 0;	// slidables
@@ -263,7 +1191,7 @@ public class DistChain {
 				rows[s++] = i;
 		if(s > 0) {
 			// choose a random slidable
-			s = rows[Utils.generator.nextInt(s)];
+			s = rows[rnd.nextInt(s)];
 
 			if((inds1[s] >= 0 ? col1.singOrd : col2.singOrd) < 0) {		// disallow sliding character from singular column
 				// evaluate swap
@@ -281,9 +1209,9 @@ public class DistChain {
 				double newPi = logPi(newDist);
 //				double mh = newPi/curPi;
 				double logMh = newPi-curPi;
-				if(logMh >= 0 || Utils.generator.nextDouble() < Math.exp(logMh)) {
+				if(logMh >= 0 || rnd.nextDouble() < Math.exp(logMh)) {
 					scAccept.inc();
-					inds1[s] = ch2; inds2[s] = ch1;
+					curAli.setInd(col1, s, ch2); curAli.setInd(col2, s, ch1);
 					curAli.updateSing(col1); curAli.updateSing(col2);
 					curDist = newDist;
 					curPi = newPi;
@@ -300,19 +1228,114 @@ public class DistChain {
 		return 0;
 	}
 	
+	/**
+	 * Multiple-try version of {@link #slideChar()}: draws {@link #multiTry} slide proposals,
+	 * selects one of them with probability proportional to its likelihood, then draws
+	 * reference proposals from the selected state and accepts it with probability
+	 * min(1, sum of proposal weights / sum of reference weights). Proposals sliding from
+	 * a singular column or finding no slidable characters propose the current state, which
+	 * keeps the proposal symmetric as in the single-try move.
+	 */
+	public int mtmSlide() {
+		int k, tries = multiTry;
+		double max = Double.NEGATIVE_INFINITY;
+		for(k = 0; k < tries; k++) {
+			proposeSlide(k);
+			if(mtWeights[k] > max)
+				max = mtWeights[k];
+		}
+		
+		// select a proposal
+		double sumY = 0;
+		for(k = 0; k < tries; k++)
+			sumY += mtWeights[k] = Math.exp(mtWeights[k]-max);
+		double u = rnd.nextDouble()*sumY;
+		int sel = 0;
+		while(sel < tries-1 && (u -= mtWeights[sel]) >= 0)
+			sel++;
+		AlignCol col = mtCols[sel];
+		int row = mtRows[sel];
+		if(row < 0) {
+			mtStay.inc();		// current state was selected
+			return 0;
+		}
+		
+		// move to the selected state and draw the reference set from there
+		int oldDist = curDist;
+		double oldPi = curPi;
+		swapChars(col, row);
+		curDist = mtDists[sel];
+		curPi = logPi(curDist);
+		double sumX = Math.exp(oldPi-max);
+		for(k = 0; k < tries-1; k++) {
+			proposeSlide(k);
+			sumX += Math.exp(mtWeights[k]-max);
+		}
+		if(sumY >= sumX || rnd.nextDouble() < sumY/sumX) {
+			mtAccept.inc();
+			return 1;
+		}
+		mtReject.inc();
+		swapChars(col, row);
+		curDist = oldDist;
+		curPi = oldPi;
+		return 0;
+	}
+	
+	/**
+	 * Draws a slide proposal from the current state as in {@link #slideChar()} and stores
+	 * it with its distance and log-likelihood as the <code>k</code>th try (row -1 if the
+	 * current state is proposed).
+	 */
+	private void proposeSlide(int k) {
+		curAli.randWin(win, rnd);
+		AlignCol col1 = win.first, col2 = win.last;
+		int[] inds1 = col1.inds, inds2 = col2.inds;
+		int s = 0;
+		for(int i = 0; i < inds1.length; i++)
+			if(inds1[i] >= 0 ^ inds2[i] >= 0)
+				rows[s++] = i;
+		mtCols[k] = col1;
+		mtRows[k] = -1;
+		mtDists[k] = curDist;
+		if(s > 0) {
+			s = rows[rnd.nextInt(s)];
+			if((inds1[s] >= 0 ? col1.singOrd : col2.singOrd) < 0) {
+				int ch1 = inds1[s], ch2 = inds2[s];
+				mtRows[k] = s;
+				mtDists[k] = curDist-distCalc.distSingle(inds1, s, ch1)-distCalc.distSingle(inds2, s, ch2)
+						+distCalc.distSingle(inds1, s, ch2)+distCalc.distSingle(inds2, s, ch1);
+			}
+		}
+		mtWeights[k] = logPi(mtDists[k]);
+	}
+	
+	/**
+	 * Swaps the characters of <code>col</code> and the next column in <code>row</code>.
+	 */
+	private void swapChars(AlignCol col, int row) {
+		AlignCol next = col.next;
+		int ch = col.inds[row];
+		curAli.setInd(col, row, next.inds[row]);
+		curAli.setInd(next, row, ch);
+		curAli.updateSing(col);
+		curAli.updateSing(next);
+	}
+	
 	public int breakCol() {
-		AlignCol col = curAli.randCol();
+		AlignCol col = curAli.randCol(rnd);
 		int[] inds = col.inds;
 		int s = 0;		// non-gaps, where col can be broken
 		for(int i = 0; i < inds.length; i++)
 			if(inds[i] >= 0)
 				rows[s++] = i;
 		if(s > 1) {
-			double mh = (double)curAli.cols.size()*s/(curAli.singCols.size()+1);
+			// the new column is singular and so is the broken one if it had two non-gaps
+			double mh = (double)curAli.cols.size()*s/(curAli.singCols.size()+(s == 2 ? 2 : 1))*joinPerBreak;
 			// choose a random non-gap
-			s = rows[Utils.generator.nextInt(s)];
+			s = rows[rnd.nextInt(s)];
 			// and a random direction (0 = left)
-			int dir = Utils.generator.nextInt(2);
+			int dir = rnd.nextInt(2);
 			
 			// evaluate column break
 			int ch = inds[s];
@@ -322,14 +1345,14 @@ public class DistChain {
 			double newPi = logPi(newDist);
 //			mh *= newPi/curPi;
 			mh *= Math.exp(newPi-curPi);
-			if(Utils.generator.nextDouble() < mh) {
-				// always accept as MH = cols.size()*s/(singCols.size()+1) > 1
+			if(rnd.nextDouble() < mh) {
 				bcAccept.inc();
-				inds[s] = -1;
+				curAli.setInd(col, s, -1);
 				curAli.updateSing(col);
-				int[] newcol = Utils.copyOf(gapCol);
-				newcol[s] = ch;
-				curAli.insertCol(new AlignCol(newcol), dir>0?col:col.prev);
+				AlignCol newcol = curAli.newCol();
+				System.arraycopy(gapCol, 0, newcol.inds, 0, gapCol.length);
+				newcol.inds[s] = ch;
+				curAli.insertCol(newcol, dir>0?col:col.prev);
 				curDist = newDist;
 				curPi = newPi;
 				return 1;
@@ -343,7 +1366,7 @@ public class DistChain {
 	}
 	
 	public int joinCol() {
-		AlignCol col = curAli.randSingCol();
+		AlignCol col = curAli.randSingCol(rnd);
 		if(col != null) {
 			int[] inds = col.inds, jinds;
 			
@@ -352,7 +1375,7 @@ public class DistChain {
 			while(inds[s] < 0)
 				s++;
 			// choose a random direction (0 = left)
-			int dir = Utils.generator.nextInt(2);
+			int dir = rnd.nextInt(2);
 			AlignCol jcol = dir>0 ? col.next : col.prev;
 			
 			if(jcol != null && (jinds=jcol.inds)[s] < 0) {
@@ -362,13 +1385,13 @@ public class DistChain {
 				newDist -= distCalc.distSingle(inds, s, ch)+distCalc.distSingle(jinds, s, -1);
 				newDist += distCalc.distSingle(jinds, s, ch);
 				// calculate MH ratio (ignoring directions as they are chosen analogously in break and join)
-				double mh = (double)curAli.singCols.size()/(curAli.cols.size()-1)/(jcol.nonGaps()+1);
+				double mh = (double)curAli.singCols.size()/(curAli.cols.size()-1)/(jcol.nonGaps()+1)/joinPerBreak;
 				double newPi = logPi(newDist);
 //				mh *= newPi/curPi;
 				mh *= Math.exp(newPi-curPi);
-				if(Utils.generator.nextDouble() < mh) {
+				if(rnd.nextDouble() < mh) {
 					jcAccept.inc();
-					jinds[s] = ch;
+					curAli.setInd(jcol, s, ch);
 					curAli.updateSing(jcol);
 					curAli.removeCol(col);
 					curDist = newDist;
@@ -386,7 +1409,166 @@ public class DistChain {
 		return 0;
 	}
 	
-	private double logPi(int dist) {
+	/**
+	 * Window realignment move: selects a random window of {@link #realignLen} columns
+	 * and proposes a uniformly random realignment of the characters within it having
+	 * the same number of columns (and no gap-only columns). The proposal is symmetric
+	 * as the window selection and the set of possible realignments depend only on the
+	 * (unchanged) alignment length and characters within the window.
+	 */
+	public int realignWin() {
+		int len = realignLen, size = gapCol.length, i, j, row;
+		if(curAli.cols.size() < len) {
+			wrNoMoves.inc();	// alignment is shorter than the window
+			return 0;
+		}
+		curAli.randWin(rwin, rnd);
+		
+		// count characters of each row within window
+		Arrays.fill(rwCnts, 0);
+		AlignCol col = rwin.first;
+		for(i = 0; i < len; i++, col = col.next) {
+			int[] inds = col.inds;
+			for(row = 0; row < size; row++) {
+				if(inds[row] >= 0 && rwCnts[row]++ == 0)
+					rwStarts[row] = inds[row];
+			}
+		}
+		
+		// propose a uniformly random placement of characters, rejecting placements
+		// with gap-only columns (up to a limit, the probability of reaching which is
+		// the same for the reverse move)
+		boolean valid = false;
+		for(int tries = 0; tries < RW_MAX_TRIES && !valid; tries++) {
+			for(i = 0; i < len; i++)
+				Arrays.fill(rwCols[i], -1);
+			for(row = 0; row < size; row++) {
+				int need = rwCnts[row], ch = rwStarts[row];
+				for(i = 0; need > 0; i++) {		// selection sampling of need positions out of len
+					if(rnd.nextInt(len-i) < need) {
+						rwCols[i][row] = ch++;
+						need--;
+					}
+				}
+			}
+			valid = true;
+			for(i = 0; i < len && valid; i++) {
+				int[] inds = rwCols[i];
+				for(j = 0; j < size && inds[j] < 0; j++)
+					;
+				valid = j < size;
+			}
+		}
+		if(!valid) {
+			wrNoMoves.inc();	// no valid realignment was found
+			return 0;
+		}
+		
+		// evaluate realignment
+		int newDist = curDist-distCalc.dist(rwin);
+		for(i = 0; i < len; i++)
+			newDist += distCalc.dist(rwCols[i]);
+		double newPi = logPi(newDist);
+		double logMh = newPi-curPi;
+		if(logMh >= 0 || rnd.nextDouble() < Math.exp(logMh)) {
+			wrAccept.inc();
+			col = rwin.first;
+			for(i = 0; i < len; i++, col = col.next)
+				rwOld[i] = col.inds;
+			rwin.replaceWith(rwCols);
+			for(i = 0; i < len; i++)		// keep old arrays as working arrays
+				rwCols[i] = rwOld[i];
+			curDist = newDist;
+			curPi = newPi;
+			return 1;
+		}
+		wrReject.inc();
+		return 0;
+	}
+	
+	/**
+	 * Gibbs character move: selects a character and moves it to a position within its
+	 * gap run (the columns between the previous and next characters of its sequence)
+	 * drawn from the conditional stationary distribution, so there are no rejections.
+	 * 
+	 * <p>The character is selected by choosing a random column and a random row; if the
+	 * row has a gap there, the nearest character in a random direction is taken. The
+	 * selection probability of a character is thus 1/(L*n)*(1+g/2) where g is the number
+	 * of gap columns in its run, which does not depend on the position of the character
+	 * within the run, as required for a valid Gibbs update.
+	 */
+	public int gibbsChar() {
+		AlignCol col = curAli.randCol(rnd);
+		int row = rnd.nextInt(gapCol.length);
+		if(col.inds[row] < 0) {
+			boolean right = rnd.nextInt(2) > 0;
+			do
+				col = right ? col.next : col.prev;
+			while(col != null && col.inds[row] < 0);
+			if(col == null) {
+				gcNoMoves.inc();	// no character in the selected direction
+				return 0;
+			}
+		}
+		if(col.singOrd >= 0) {
+			gcSing.inc();		// the column would become gap-only if the character left
+			return 0;
+		}
+		
+		// collect positions in the run
+		AlignCol start = col;
+		while(start.prev != null && start.prev.inds[row] < 0)
+			start = start.prev;
+		int ch = col.inds[row], n = 0, cur = 0;
+		int delta = distCalc.distSingle(col.inds, row, -1)-distCalc.distSingle(col.inds, row, ch);
+		double max = Double.NEGATIVE_INFINITY;
+		for(AlignCol pos = start; pos != null && (pos == col || pos.inds[row] < 0); pos = pos.next, n++) {
+			if(n == gcCands.length) {
+				gcCands = Arrays.copyOf(gcCands, 2*n);
+				gcDists = Arrays.copyOf(gcDists, 2*n);
+				gcWeights = Arrays.copyOf(gcWeights, 2*n);
+			}
+			gcCands[n] = pos;
+			if(pos == col) {
+				cur = n;
+				gcDists[n] = curDist;
+			} else {
+				gcDists[n] = curDist+delta+distCalc.distSingle(pos.inds, row, ch)-distCalc.distSingle(pos.inds, row, -1);
+			}
+			double lp = logPi(gcDists[n]);
+			gcWeights[n] = lp;
+			if(lp > max)
+				max = lp;
+		}
+		
+		// draw new position
+		double sum = 0;
+		for(int i = 0; i < n; i++)
+			sum += gcWeights[i] = Math.exp(gcWeights[i]-max);
+		double u = rnd.nextDouble()*sum;
+		int sel = 0;
+		while(sel < n-1 && (u -= gcWeights[sel]) >= 0)
+			sel++;
+		if(sel == cur) {
+			gcStay.inc();
+			return 0;
+		}
+		gcMove.inc();
+		AlignCol pos = gcCands[sel];
+		curAli.setInd(col, row, -1);
+		curAli.setInd(pos, row, ch);
+		curAli.updateSing(col);
+		curAli.updateSing(pos);
+		curDist = gcDists[sel];
+		curPi = logPi(curDist);
+		return 1;
+	}
+	
+	/**
+	 * Returns the log of the (unnormalized) target probability of an alignment at distance
+	 * <code>dist</code> from the reference.
+	 */
+	protected double logPi(int dist) {
 //		return Math.exp(-Math.abs(dist-targetDist)*2/heat);
 		return -Math.abs(dist-targetDist)*2/heat;
 	}
@@ -395,21 +1577,42 @@ public class DistChain {
 		// calc swap Metropolis ratio
 		double newPi = logPi(chain.curDist), cnewPi = chain.logPi(curDist);
 		double m = newPi+cnewPi-curPi-chain.curPi;
-		if(m >= 0 || Utils.generator.nextDouble() < Math.exp(m)) {
-			csAccept.inc();
-			// swap states
+		if(m >= 0 || rnd.nextDouble() < Math.exp(m)) {
+			acceptSwap(chain);
+			return true;
+		}
+		rejectSwap();
+		return false;
+	}
+	
+	/**
+	 * Counts an accepted swap and exchanges the states with <code>chain</code> (if not
+	 * null, otherwise the states are exchanged by the caller).
+	 */
+	void acceptSwap(DistChain chain) {
+		csAccept.inc();
+		if(chain != null) {
 			Align ali = curAli;
 			curAli = chain.curAli;
 			chain.curAli = ali;
+			KineticMoves km = kinMoves;
+			kinMoves = chain.kinMoves;
+			chain.kinMoves = km;
+			kinWait = chain.kinWait = -1;
 			int dist = curDist;
 			curDist = chain.curDist;
 			chain.curDist = dist;
-			curPi = newPi;
-			chain.curPi = cnewPi;
-			return true;
+			curPi = logPi(curDist);
+			chain.curPi = chain.logPi(chain.curDist);
+			swapped = chain.swapped = true;
 		}
+	}
+	
+	/**
+	 * Counts a rejected swap.
+	 */
+	void rejectSwap() {
 		csReject.inc();
-		return false;
-	}	
+	}
 
 }
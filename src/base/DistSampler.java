@@ -3,30 +3,106 @@ package base;
 import io.FastaReader;
 import io.RawSequences;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Random;
 
+import utils.BackgroundWriter;
 import utils.CntGroup;
 import utils.Counter;
-import utils.Utils;
+import utils.Histogram;
+import utils.HyperLogLog;
+import utils.StateRandom;
 
 public class DistSampler {
+	
+	private static final int ADAPT_FREQ = 10000;	// frequency of move weight updates during burn-in (in steps)
+	private static final int AUTO_BURNIN_START = 1000;	// length of the first half round of automatic burn-in
+	private static final int AUTO_BURNIN_MAX = 1<<30;	// max. length of a half round of automatic burn-in
+	private static final double GEWEKE_Z = 2;		// max. z-score of the mean distance difference at convergence
+	private static final int CKPT_MAGIC = 0x41444332;	// "ADC2"
+	private static final int CKPT_BLOCK = 10000;	// burn-in steps between checks for checkpoint time
+	private static final double COUPLE_TV = 0.01;	// total variation bound at the end of the burn-in set by coupling
+	private static final int COUPLE_MAX_STEPS = 10000000;	// max. steps of coupled chains if burn-in is not limited
+	private static final int WORKER_SWAP_FREQ = 100;	// min. steps between swaps with worker processes
+	
+	// run phases (saved in checkpoints)
+	private static final int PHASE_BURNIN = 0, PHASE_SAMPLING = 1;
 
 	// task params
 	private Align ref;
 	private DistCalc distCalc;
-	private int targetDist;
+	private int[] targetDists;					// sorted target distances
 	
 	private int nonExactStrategy = 0;			// 0: do not reject, 1: reject and skip, 2: reject and resample
 	private boolean writeSamples = true;		// if true writes samples to files and statistics to stdout
 	private boolean restartFromRef = false;		// if true always start from ref after a sample
+	private boolean sketchStats = false;		// if true uses bounded-memory sketches for sample statistics
+	private String histFile = null;				// if set distance histograms are written here after the run
+	private String sampleLog = null;			// if set samples are written into this log instead of separate files
+	private File outputDir = null;				// directory of the sample files (null: current directory)
+	private SampleListener sampleListener = null;	// if set receives the samples of the chains
+	private int realignLen = 0;					// window length of the window realignment move (0: disabled)
+	private boolean gibbsChar = false;			// if true the Gibbs character move is used
+	private boolean adaptMoves = false;			// if true move weights are adapted during burn-in
+	private int multiTry = 1;					// number of tries in the slide move (1: plain Metropolis)
+	private boolean kinetic = false;			// if true chains use rejection-free sampling
+	private double stopEss = 0;					// if positive, sampling stops at this effective sample size
+	private double timeBudget = 0;				// if positive, the run stops after this many seconds
+	private String ckptFile = null;				// if set checkpoints are written to (or resumed from) here
+	private long ckptInterval;					// time between checkpoints in ns
+	private boolean resume = false;				// if true the run is resumed from ckptFile
+	private int bandMin = -1, bandMax;			// distance band of flat histogram sampling (bandMin < 0: disabled)
+	private double wlMinF;						// final modification factor of Wang-Landau learning
+	private boolean quickInit = false;			// if true chains are walked greedily to the target before burn-in
+	private int couplePairs = 0;				// if positive the burn-in is set by this many pairs of coupled chains
+	private int coupleLag = 1;
+	private int nworker = 0;					// if positive chains are run in this many worker processes
+	private Random rnd;							// source of random numbers (own generator if not set)
+	private long verifySteps = 0;				// if positive chains are verified every this many steps
+	private double verifySecs = 0;				// if positive chains are verified every this many seconds
+	private Verifier verifier;
+	private String metricsFile = null;			// if set live metrics are written here
+	private double metricsSecs;					// time between metrics snapshots
+	private Metrics metrics;
+	private Histogram swapTimes;				// (with metrics) sampled times of the swaps in ns
+	private int swapTimeCnt;
+	private boolean jfrEvents = false;			// if true JFR events are emitted
+	private SamplerEvents events;				// null: no JFR events
+	private Object tuneEvent;					// JFR event of the current tuning cycle
 
 	// chain params
 	private int nchain;
+	private int chainsPerTarget;				// chains are grouped by target, from the coldest one
 	private DistChain[] chains;
+	private int[][] swapPairs;					// pairs of chains between which swaps are attempted
 	private double tempDiff = 1;
 	private int swapFreq = 1;
 	private int lastSwap = 0;
+	
+	// run progress
+	private int phase;
+	private int burnLen;						// burn-in length of the run (set by coupling)
+	private long burnDone;
+	private int samplesDone;
+	private volatile boolean stopRequested = false;	// if true sampling stops early
+	private WorkerPool workers;					// worker processes running the chains (null: run here)
+	private SampleWriter sampleWriter;
+	private int sampleRate;
+	private long elapsed;						// run time before resuming in ns
+	private long nextCkpt;
+	private BackgroundWriter ckptWriter;
 
 	// temp tune params
 	private int tunePerChain = 0;
@@ -38,17 +114,54 @@ public class DistSampler {
 	private Counter tsReject = totalSwaps.nc("tsReject"), tsAccept = totalSwaps.nc("tsAccept");
 	
 	public DistSampler(Align ref, int targetDist, int nchain) {
+		this(ref, new int[] { targetDist }, nchain);
+	}
+	
+	public DistSampler(Align ref, double targetAcc, int nchain) {
+		this(ref, new double[] { targetAcc }, nchain);
+	}
+	
+	/**
+	 * Creates a sampler for several target distances in one run: a ladder of <code>nchain</code>
+	 * tempered chains is run for each target, and besides swaps between neighbouring heats,
+	 * swaps between the chains of neighbouring targets at the same heat level are attempted,
+	 * so the targets share the burn-in and help each other mix. Samples are collected from
+	 * the coldest chain of each target.
+	 */
+	public DistSampler(Align ref, int[] targetDists, int nchain) {
 		this.ref = ref;
 		distCalc = new DistCalc(ref);
-		this.targetDist = targetDist;
-		this.nchain = nchain;
+		setTargets(targetDists.clone(), nchain);
 	}
 	
-	public DistSampler(Align ref, double targetAcc, int nchain) {
+	/**
+	 * Creates a sampler for several target distances given as agreements to the reference.
+	 * @see #DistSampler(Align, int[], int)
+	 */
+	public DistSampler(Align ref, double[] targetAccs, int nchain) {
 		this.ref = ref;
 		distCalc = new DistCalc(ref);
-		targetDist = distCalc.acc2dist(targetAcc);
-		this.nchain = nchain;
+		int[] dists = new int[targetAccs.length];
+		for(int t = 0; t < dists.length; t++)
+			dists[t] = distCalc.acc2dist(targetAccs[t]);
+		setTargets(dists, nchain);
+	}
+	
+	/**
+	 * Returns the target distances in increasing order.
+	 */
+	public int[] getTargetDists() {
+		return targetDists.clone();
+	}
+	
+	private void setTargets(int[] dists, int nchain) {
+		Arrays.sort(dists);
+		for(int t = 1; t < dists.length; t++)
+			if(dists[t] == dists[t-1])
+				throw new Error("Duplicate target distance: "+dists[t]);
+		targetDists = dists;
+		chainsPerTarget = nchain;
+		this.nchain = nchain*dists.length;
 	}
 	
 	public void setSwapFreq(int swapFreq) {
@@ -59,129 +172,835 @@ public class DistSampler {
 		this.tempDiff = tempDiff;
 	}
 	
+	/**
+	 * Enables/disables bounded-memory (sketch based) sample statistics in the chains.
+	 * @see DistChain#setSketchStats(boolean)
+	 */
+	public void setSketchStats(boolean sketchStats) {
+		this.sketchStats = sketchStats;
+	}
+	
+	/**
+	 * Sets the file to write the distance histograms of the chains to after the run.
+	 * Files ending in <code>.bin</code> are written in binary (see {@link #writeHists(String)}),
+	 * others as tab separated values.
+	 */
+	public void setHistFile(String histFile) {
+		this.histFile = histFile;
+	}
+	
+	/**
+	 * Makes the samples written into one StatAlign style log file (gzip compressed if its
+	 * name ends with <code>.gz</code>) instead of a FASTA file per sample.
+	 */
+	public void setSampleLog(String sampleLog) {
+		this.sampleLog = sampleLog;
+	}
+	
+	/**
+	 * Sets the directory to write the sample files into (by default the current directory).
+	 * The sample log and the other output files are given by their own paths.
+	 */
+	public void setOutputDir(File dir) {
+		outputDir = dir;
+	}
+	
+	/**
+	 * Enables/disables writing the samples to files and printing them (enabled by default).
+	 */
+	public void setWriteSamples(boolean writeSamples) {
+		this.writeSamples = writeSamples;
+	}
+	
+	/**
+	 * Sets the listener receiving each sample of the sampled chains (null for none). The
+	 * alignments passed are the current states of the chains, not copies.
+	 */
+	public void setSampleListener(SampleListener sampleListener) {
+		this.sampleListener = sampleListener;
+	}
+	
+	/**
+	 * Runs the sampler on a background thread, with the samples taken from the returned
+	 * stream (replacing the sample listener). Parameters are as for {@link #run(int, int, int)}.
+	 */
+	public SampleStream stream(int burnin, int samples, int rate) {
+		return new SampleStream(this, burnin, samples, rate);
+	}
+	
+	/**
+	 * Makes the current (or next) run stop sampling, once burn-in has finished. May be
+	 * called from any thread.
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+	
+	/**
+	 * Enables the window realignment move in the chains.
+	 * @see DistChain#setRealignWin(int)
+	 */
+	public void setRealignWin(int len) {
+		realignLen = len;
+	}
+	
+	/**
+	 * Enables/disables the Gibbs character move in the chains.
+	 * @see DistChain#setGibbsChar(boolean)
+	 */
+	public void setGibbsChar(boolean gibbsChar) {
+		this.gibbsChar = gibbsChar;
+	}
+	
+	/**
+	 * Sets the number of tries of the multiple-try slide move in the chains.
+	 * @see DistChain#setMultiTry(int)
+	 */
+	public void setMultiTry(int k) {
+		multiTry = k;
+	}
+	
+	/**
+	 * Enables/disables rejection-free (n-fold way) sampling in the chains.
+	 * @see DistChain#setKinetic(boolean)
+	 */
+	public void setKinetic(boolean kinetic) {
+		this.kinetic = kinetic;
+	}
+	
+	/**
+	 * Makes the run stop when the effective sample size of the coldest chain of each target reaches
+	 * <code>ess</code> instead of after a fixed number of samples. The burn-in length
+	 * is determined automatically and samples are thinned by the autocorrelation time.
+	 * @param ess the target effective sample size (0 to disable)
+	 */
+	public void setStopEss(double ess) {
+		stopEss = ess;
+	}
+	
+	/**
+	 * Makes the run take as many samples as fit into a time budget (counted from the start
+	 * of the run) instead of a fixed number. The burn-in length is determined automatically
+	 * (using at most half of the budget) and samples are thinned by the autocorrelation time.
+	 * @param seconds the time budget (0 to disable)
+	 */
+	public void setTimeBudget(double seconds) {
+		timeBudget = seconds;
+	}
+	
+	/**
+	 * Makes the run write checkpoints periodically (in the background), from which it can
+	 * be resumed, see {@link #setResume(boolean)}. Checkpoints are taken during fixed length
+	 * burn-in and during sampling.
+	 * @param file checkpoint file (overwritten by each checkpoint)
+	 * @param minutes time between checkpoints
+	 */
+	public void setCheckpoint(String file, double minutes) {
+		ckptFile = file;
+		ckptInterval = (long)(minutes*60e9);
+	}
+	
+	/**
+	 * Makes the run resume from the checkpoint file set by {@link #setCheckpoint(String, double)}
+	 * instead of starting from the reference. The sampler must be set up with the same options
+	 * as the checkpointed run, the random number generator must be a {@link StateRandom}.
+	 * The run then continues exactly as it would have without interruption (unless move
+	 * weights are adapted, which depends on timing, or there is a time budget).
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+	
+	/**
+	 * Enables/disables the fast initialization of the chains: before burn-in, the coldest
+	 * chain of each target is walked greedily from the reference (or from the state of the
+	 * previous target) to the target distance and its state is copied to the other chains
+	 * of the target. Not used with flat histogram sampling.
+	 * @see DistChain#quenchToTarget()
+	 */
+	public void setQuickInit(boolean quickInit) {
+		this.quickInit = quickInit;
+	}
+	
+	/**
+	 * Makes the run determine the burn-in length by coupled chains: before burn-in,
+	 * <code>pairs</code> pairs of coupled chains are run from the reference (targeting the
+	 * farthest target, at heat 1) until they meet, and the burn-in is set to the number of
+	 * steps after which the estimated total variation bound drops to 0.01. The burn-in given
+	 * to {@link #run(int, int, int)} is then the maximal length (used if some pair does not meet).
+	 * @see CoupledChains
+	 */
+	public void setCoupling(int pairs, int lag) {
+		couplePairs = pairs;
+		coupleLag = lag;
+	}
+	
+	/**
+	 * Makes the run sample over a band of distances instead of at the target distance:
+	 * the chains learn the density of states in the band by the Wang-Landau algorithm
+	 * during burn-in (until the modification factor falls below <code>minF</code>, or for
+	 * at most <code>burnin</code> steps if positive), then sample all distances of the band
+	 * about equally often.
+	 * @see WangLandauChain
+	 */
+	public void setFlatHist(int dmin, int dmax, double minF) {
+		if(dmax > distCalc.getMaxD())
+			throw new Error("Distance band exceeds the maximal distance "+distCalc.getMaxD());
+		bandMin = dmin;
+		bandMax = dmax;
+		wlMinF = minF;
+	}
+	
+	/**
+	 * Sets the source of random numbers of the run, used by all chains, e.g. to run several
+	 * samplers in parallel. By default the run creates its own {@link StateRandom}.
+	 * Checkpoints require a {@link StateRandom}.
+	 */
+	public void setRandom(Random rnd) {
+		this.rnd = rnd;
+	}
+	
+	/**
+	 * Enables runtime verification of the tracked state of the chains every
+	 * <code>steps</code> steps and/or every <code>seconds</code> seconds (0: not by that
+	 * period), see {@link Verifier}. Disabled by default.
+	 */
+	public void setVerify(long steps, double seconds) {
+		verifySteps = steps;
+		verifySecs = seconds;
+	}
+	
+	/**
+	 * Makes live metrics of the chains written to <code>file</code> as JSON lines every
+	 * <code>seconds</code> seconds, see {@link Metrics}.
+	 */
+	public void setMetrics(String file, double seconds) {
+		metricsFile = file;
+		metricsSecs = seconds;
+	}
+	
+	/**
+	 * Enables emitting Java Flight Recorder events of the phases, swaps and samples, see
+	 * {@link SamplerEvents}. The events still have to be enabled in the recording.
+	 */
+	public void setJfrEvents(boolean jfrEvents) {
+		this.jfrEvents = jfrEvents;
+	}
+	
+	/**
+	 * Makes the chains run in <code>n</code> local worker processes (0: in this process)
+	 * after temperature tuning and initialization, with swaps attempted at most every
+	 * 100 steps. Cannot be combined with checkpoints, flat histogram sampling, automatic
+	 * stopping and move adaptation.
+	 * @see WorkerPool
+	 */
+	public void setWorkers(int n) {
+		nworker = n;
+	}
+	
+	/**
+	 * Enables/disables adaptation of the move mixture during burn-in. The weights are
+	 * frozen before sampling and reported with the statistics.
+	 * @see DistChain#updateMoveWeights()
+	 */
+	public void setAdaptMoves(boolean adaptMoves) {
+		this.adaptMoves = adaptMoves;
+	}
+	
 	public void enableTempTune(double targetAccept, int tuneCyclesPerChain, int tempTuneFreq) {
 		this.targetAccept = targetAccept;
 		tunePerChain = tuneCyclesPerChain*tempTuneFreq;
 		this.tempTuneFreq = tempTuneFreq;
 	}
 	
+	/**
+	 * Runs the sampler. If a target effective sample size or a time budget is set, the
+	 * burn-in is run until convergence (for at most <code>burnin</code> steps if positive)
+	 * and <code>samples</code> is ignored, while <code>rate</code> is only the initial
+	 * sampling rate.
+	 */
 	public void run(int burnin, int samples, int rate) {
 		int i, j;
+		long start = System.nanoTime();
+		boolean auto = stopEss > 0 || timeBudget > 0;
+		if(rnd == null)
+			rnd = new StateRandom();
+		boolean verify = verifySteps > 0 || verifySecs > 0;
+		if(nworker > 0 && (ckptFile != null || bandMin >= 0 || auto || adaptMoves || restartFromRef || verify ||
+				metricsFile != null))
+			throw new Error("Worker processes cannot be combined with checkpoints, flat histogram, automatic stopping, move adaptation, verification or metrics");
+		verifier = verify ? new Verifier(ref, verifySteps, verifySecs) : null;
+		events = jfrEvents ? SamplerEvents.create() : null;
+		if(jfrEvents && events == null)
+			System.out.println("JFR events are not supported by this JVM");
 
-		System.out.println("Target dist: "+targetDist);
+		if(bandMin >= 0) {
+			System.out.println("Flat histogram band: "+bandMin+"-"+bandMax);
+		} else if(targetDists.length == 1) {
+			System.out.println("Target dist: "+targetDists[0]);
+		} else {
+			System.out.print("Target dists:");
+			for(int t = 0; t < targetDists.length; t++)
+				System.out.print((t > 0 ? "," : " ")+targetDists[t]);
+			System.out.println();
+		}
 		System.out.println("MCMC pars: "+burnin+","+samples+","+rate);
-		System.out.println("Temp tuning: "+(tunePerChain==0?"disabled":targetAccept+","+tunePerChain/tempTuneFreq+","+tempTuneFreq));
+		System.out.println("Temp tuning: "+(tunePerChain==0||bandMin>=0?"disabled":targetAccept+","+tunePerChain/tempTuneFreq+","+tempTuneFreq));
+		if(stopEss > 0)
+			System.out.println("Stopping at ESS: "+stopEss);
+		if(timeBudget > 0)
+			System.out.println("Time budget: "+timeBudget+"s");
 
 		// init
 		chains = new DistChain[nchain];
 		for(i = 0; i < nchain; i++) {
 //			chains[i] = new DistChain(i, ref, distCalc, Math.max(0,targetDist-i*5), 1+tempDiff*i);
 //			chains[i] = new DistChain(i, ref, distCalc, Math.max(0,targetDist-i*i*5), 1+3*Math.sqrt(i));
-			chains[i] = new DistChain(i, ref, distCalc, Math.max(0,targetDist), 1+tempDiff*i)
-					.setRejectNonExact(nonExactStrategy > 0)
-					.setWriteSamples(writeSamples);
+			int target = targetDists[i/chainsPerTarget], level = i%chainsPerTarget;
+			chains[i] = newChain(i, target, 1+tempDiff*level, true)
+					.setSampleName(targetDists.length > 1 && level == 0 ? "d"+target : null);
 			chains[i].init();
 		}
+		initSwapPairs();
+		if(metricsFile != null) {
+			swapTimes = Metrics.newTimeHistogram();
+			try {
+				metrics = new Metrics(metricsFile, metricsSecs, chains, swapTimes, totalSwaps, tsAccept);
+			} catch (IOException e) {
+				throw new Error("Cannot write metrics to "+metricsFile+": "+e.getMessage());
+			}
+		}
 		
-		// temp tuning
-		if(tunePerChain > 0) {
+		phase = PHASE_BURNIN;
+		burnDone = 0;
+		samplesDone = 0;
+		sampleRate = rate;
+		burnLen = burnin;
+		if(resume) {
+			try {
+				readCheckpoint(ckptFile);
+			} catch (IOException e) {
+				throw new Error("Cannot resume from checkpoint "+ckptFile+": "+e.getMessage());
+			}
+			start -= elapsed;
+			burnin = burnLen;
+			System.out.println("\nResumed from checkpoint "+ckptFile+" ("+(phase == PHASE_BURNIN ?
+					"burn-in step "+burnDone : "sample "+samplesDone)+")");
+		}
+		if(ckptFile != null) {
+			ckptWriter = new BackgroundWriter();
+			nextCkpt = System.nanoTime()+ckptInterval;
+		}
+		
+		// temp tuning (not with a flat histogram: within the band the target does not depend on the heat)
+		if(tunePerChain > 0 && !resume && bandMin < 0) {
 			System.out.println("\n*** Temperature tuning ***\n");
+			setPhase("tuning");
 			
 			System.out.println("Target acceptance: "+targetAccept);
 			printTempInfo("\nInitial dists+temps:");
 	
 			for(i = 0; i < nchain-1; i++) {
+				if((i+1)%chainsPerTarget == 0)
+					continue;	// the hottest chain of a target
 				for(j = 0; j < tunePerChain; j++)
 					tuneStep(i, j);
 				tuneReset(i);
+				endPhase(tuneEvent);
+				tuneEvent = null;
 			}
 			
 			printTempInfo("\nFinal dists+temps:");
 		}
 		
+		// initialization near the targets
+		if(quickInit && !resume && bandMin < 0) {
+			System.out.println("\n*** Initialization ***\n");
+			setPhase("init");
+			Object event = beginPhase("init", -1);
+			for(i = 0; i < nchain; i += chainsPerTarget) {
+				if(i > 0)
+					chains[i].jumpTo(chains[i-chainsPerTarget].getCurAli(), chains[i-chainsPerTarget].getCurDist());
+				long steps = chains[i].quenchToTarget();
+				System.out.println("Target "+chains[i].getTargetDist()+": dist "+chains[i].getCurDist()+" after "+steps+" steps");
+				for(j = i+1; j < i+chainsPerTarget; j++)
+					chains[j].jumpTo(chains[i].getCurAli(), chains[i].getCurDist());
+			}
+			endPhase(event);
+		}
+		
+		// burn-in length by coupling
+		if(couplePairs > 0 && !resume) {
+			System.out.println("\n*** Coupling ***\n");
+			setPhase("coupling");
+			Object event = beginPhase("coupling", -1);
+			int target = targetDists[targetDists.length-1];
+			// pairs at heat 1 at the largest target, the burn-in found is used for all chains
+			CoupledChains coupled = new CoupledChains(newChain(nchain, target, 1, false), newChain(nchain+1, target, 1, false),
+					coupleLag);
+			coupled.run(couplePairs, burnin > 0 ? burnin : COUPLE_MAX_STEPS, rnd);
+			endPhase(event);
+			coupled.printStats(COUPLE_TV);
+			long steps = coupled.getBurnin(COUPLE_TV);
+			if(steps >= 0)
+				burnin = (int)steps;
+			burnLen = burnin;
+			System.out.println("Burn-in steps: "+burnin);
+		}
+		
+		if(nworker > 0) {
+			try {
+				workers = new WorkerPool(chains, ref, nworker, rnd, nonExactStrategy > 0, sketchStats, realignLen,
+						gibbsChar, multiTry, kinetic);
+			} catch (IOException e) {
+				throw new Error("Cannot start worker processes: "+e.getMessage());
+			}
+			System.out.println("\nWorker processes: "+nworker);
+		}
+		
 		// MCMC run
-		if(burnin > 0) {
+		long deadline = timeBudget > 0 ? start+(long)(timeBudget*1e9) : 0;
+		if(phase == PHASE_BURNIN && (burnin > 0 || auto || bandMin >= 0)) {
 			System.out.println("\n*** Burn-in ***");
-			for(i = 0; i < burnin; i++) {
-				makeStep();
+			setPhase("burnin");
+			Object event = beginPhase("burnin", -1);
+			if(adaptMoves && burnDone == 0) {
+				for(j = 0; j < nchain; j++)
+					chains[j].startAdapt();
 			}
+			if(auto) {
+				autoBurnin(burnin, deadline > 0 ? start+(deadline-start)/2 : 0);
+				System.out.println("Burn-in steps: "+burnDone);
+			} else if(bandMin >= 0) {
+				while(!isDosConverged() && (burnin == 0 || burnDone < burnin)) {
+					burnSteps(burnin > 0 ? (int)Math.min(CKPT_BLOCK, burnin-burnDone) : CKPT_BLOCK);
+					checkpoint(start);
+				}
+				for(j = 0; j < nchain; j++)
+					((WangLandauChain)chains[j]).freeze();
+				System.out.println("Wang-Landau steps: "+burnDone+" modification factor: "+
+						String.format(Locale.US, "%.3g", ((WangLandauChain)chains[0]).getModFactor()));
+			} else {
+				while(burnDone < burnin) {
+					burnSteps((int)Math.min(CKPT_BLOCK, burnin-burnDone));
+					checkpoint(start);
+				}
+			}
+			if(adaptMoves) {
+				for(j = 0; j < nchain; j++)
+					chains[j].freezeMoves();
+			}
+			endPhase(event);
+		}
+		if(phase == PHASE_BURNIN) {
+			phase = PHASE_SAMPLING;
+			for(j = 0; j < nchain; j++)
+				chains[j].resetTraces();
+		}
+		sampleWriter = null;
+		if(writeSamples) {
+			// samples already in the log when resuming, taken by the cold chains
+			long taken = 0;
+			for(j = 0; j < nchain; j += chainsPerTarget)
+				taken += chains[j].getTotalSamples();
+			try {
+				sampleWriter = new SampleWriter(distCalc, sampleLog, outputDir, taken);
+			} catch (IOException e) {
+				throw new Error("Cannot write samples to "+sampleLog+": "+e.getMessage());
+			}
+			for(j = 0; j < nchain; j++)
+				chains[j].setSampleWriter(sampleWriter);
 		}
 		System.out.println("\n*** Sampling ***\n");
-		for(i = 0; i < samples;) {
-			for(j = 0; j < rate; j++)
-				makeStep();
-			if(sample() || nonExactStrategy < 2)
-				i++;
+		setPhase("sampling");
+		Object samplingEvent = beginPhase("sampling", -1);
+		while(!stopRequested && (auto ? !stopSampling(deadline) : samplesDone < samples)) {
+			makeSteps(sampleRate);
+			if(sample() || (nonExactStrategy < 2 && bandMin < 0))
+				samplesDone++;
 			if(restartFromRef) {
 				for(j = 0; j < nchain; j++)
-					chains[j].jumpTo(ref);
+					chains[j].jumpTo(ref, 0);
+			}
+			if(auto) {
+				// thin by the (largest) autocorrelation time of the sampled chains
+				double iat = Double.NaN;
+				for(j = 0; j < nchain; j += chainsPerTarget) {
+					double x = chains[j].getIat();
+					if(Double.isNaN(iat) || x > iat)
+						iat = x;
+				}
+				if(!Double.isNaN(iat))
+					sampleRate = Math.max(1, (int)Math.ceil(iat));
 			}
+			checkpoint(start);
+		}
+		endPhase(samplingEvent);
+		if(workers != null) {
+			workers.collect();
+			workers.close();
+			workers = null;
+		}
+		if(sampleWriter != null) {
+			sampleWriter.close();
+			if(sampleWriter.getStalls() > 0)
+				System.out.println("\nSampling waited for the sample writer "+sampleWriter.getStalls()+" times");
+		}
+		if(metrics != null) {
+			metrics.setPhase("done");
+			metrics.close();
+			metrics = null;
+		}
+		if(verifier != null) {
+			verifier.close();
+			verifier.printStats();
+			verifier = null;
+		}
+		if(auto)
+			System.out.println("\nSamples: "+samplesDone+" final rate: "+sampleRate);
+		if(ckptWriter != null) {
+			ckptWriter.close();
+			ckptWriter = null;
 		}
 		
 		System.out.println("\n*** Statistics ***");
 		printStats();
+		
+		if(histFile != null) {
+			try {
+				writeHists(histFile);
+			} catch (IOException e) {
+				System.out.println("Error writing histograms to "+histFile+": "+e.getMessage());
+			}
+		}
+		stopRequested = false;
+	}
+	
+	/**
+	 * Creates a chain with the move and statistics settings of the sampler.
+	 * @param verified if true the chain is checked by the verifier of the run (if any)
+	 */
+	private DistChain newChain(int id, int target, double heat, boolean verified) {
+		return (bandMin >= 0 ? new WangLandauChain(id, ref, distCalc, bandMin, bandMax, heat, wlMinF) :
+				new DistChain(id, ref, distCalc, Math.max(0,target), heat))
+				.setRejectNonExact(nonExactStrategy > 0)
+				.setRandom(rnd)
+				.setWriteSamples(writeSamples)
+				.setSampleListener(sampleListener)
+				.setSketchStats(sketchStats)
+				.setRealignWin(realignLen)
+				.setGibbsChar(gibbsChar)
+				.setMultiTry(multiTry)
+				.setKinetic(kinetic)
+				.setVerifier(verified ? verifier : null)
+				.setTimeMoves(metricsFile != null);
+	}
+	
+	private void setPhase(String name) {
+		if(metrics != null)
+			metrics.setPhase(name);
+	}
+	
+	/**
+	 * Starts a JFR phase event (null if none).
+	 */
+	private Object beginPhase(String name, int chain) {
+		return events != null ? events.beginPhase(name, chain) : null;
+	}
+	
+	private void endPhase(Object event) {
+		if(event != null)
+			events.endPhase(event);
+	}
+	
+	/**
+	 * Writes a checkpoint if one is due. The state is serialized in memory and written
+	 * to the file in the background, after the samples taken so far are written out.
+	 * @param start time the run was started at ({@link System#nanoTime()})
+	 */
+	private void checkpoint(long start) {
+		if(ckptWriter == null || System.nanoTime() < nextCkpt)
+			return;
+		if(!(rnd instanceof StateRandom))
+			throw new Error("Checkpointing requires a StateRandom random number generator");
+		Object event = beginPhase("checkpoint", -1);
+		if(sampleWriter != null)
+			sampleWriter.sync();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(CKPT_MAGIC);
+			out.writeInt(nchain);
+			out.writeInt(targetDists.length);
+			for(int t = 0; t < targetDists.length; t++)
+				out.writeInt(targetDists[t]);
+			out.writeLong(ref.getHashHi());
+			out.writeLong(ref.getHashLo());
+			out.writeInt(phase);
+			out.writeInt(burnLen);
+			out.writeLong(burnDone);
+			out.writeInt(samplesDone);
+			out.writeInt(sampleRate);
+			out.writeInt(lastSwap);
+			out.writeLong(System.nanoTime()-start);
+			out.writeLong(((StateRandom)rnd).getState());
+			totalSwaps.writeState(out);
+			for(int k = 0; k < nchain; k++)
+				chains[k].writeState(out);
+			out.close();
+			ckptWriter.write(ckptFile, bytes.toByteArray());
+		} catch (IOException e) {
+			System.out.println("Error creating checkpoint: "+e.getMessage());
+		}
+		endPhase(event);
+		nextCkpt = System.nanoTime()+ckptInterval;
+	}
+	
+	/**
+	 * Restores the sampler and the (initialized) chains from a checkpoint written by
+	 * {@link #checkpoint(long)}.
+	 */
+	private void readCheckpoint(String file) throws IOException {
+		if(!(rnd instanceof StateRandom))
+			throw new Error("Resuming requires a StateRandom random number generator");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != CKPT_MAGIC)
+				throw new IOException("not a checkpoint file");
+			if(in.readInt() != nchain || in.readInt() != targetDists.length)
+				throw new IOException("number of chains or targets mismatch");
+			for(int t = 0; t < targetDists.length; t++)
+				if(in.readInt() != targetDists[t])
+					throw new IOException("target distance mismatch");
+			if(in.readLong() != ref.getHashHi() || in.readLong() != ref.getHashLo())
+				throw new IOException("reference alignment mismatch");
+			phase = in.readInt();
+			burnLen = in.readInt();
+			burnDone = in.readLong();
+			samplesDone = in.readInt();
+			sampleRate = in.readInt();
+			lastSwap = in.readInt();
+			elapsed = in.readLong();
+			((StateRandom)rnd).setState(in.readLong());
+			totalSwaps.readState(in);
+			for(int k = 0; k < nchain; k++)
+				chains[k].readState(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Runs burn-in until the distance traces of all chains show no trend: in rounds of
+	 * doubling length, the mean distances over the two halves of the round are compared
+	 * (as in Geweke's diagnostic) with their standard errors estimated by batch means.
+	 * Half rounds stop doubling at {@link #AUTO_BURNIN_MAX} steps.
+	 * @param maxSteps maximal number of steps (0 for no limit)
+	 * @param deadline time ({@link System#nanoTime()}) to stop at (0 for no limit)
+	 */
+	private void autoBurnin(long maxSteps, long deadline) {
+		double[] means = new double[nchain], errs = new double[nchain];
+		long len = AUTO_BURNIN_START;
+		int k;
+		while(true) {
+			for(k = 0; k < nchain; k++)
+				chains[k].resetTraces();
+			burnSteps((int)len);
+			for(k = 0; k < nchain; k++) {
+				means[k] = chains[k].getDistCorr().getMean();
+				errs[k] = chains[k].getDistCorr().getMeanErr();
+				chains[k].resetTraces();
+			}
+			burnSteps((int)len);
+			boolean conv = true;
+			for(k = 0; k < nchain && conv; k++) {
+				double diff = Math.abs(chains[k].getDistCorr().getMean()-means[k]);
+				double err = chains[k].getDistCorr().getMeanErr();
+				conv = diff == 0 || diff < GEWEKE_Z*Math.sqrt(errs[k]*errs[k]+err*err);
+			}
+			if(conv || (maxSteps > 0 && burnDone+4L*len > maxSteps) || (deadline > 0 && System.nanoTime() > deadline))
+				return;
+			len = Math.min(2*len, AUTO_BURNIN_MAX);
+		}
+	}
+	
+	/**
+	 * Makes <code>n</code> burn-in steps, adapting the move weights if enabled.
+	 */
+	private void burnSteps(int n) {
+		if(!adaptMoves) {
+			makeSteps(n);
+			burnDone += n;
+			return;
+		}
+		for(int i = 0; i < n; i++) {
+			makeStep();
+			if(++burnDone % ADAPT_FREQ == 0) {
+				for(int j = 0; j < nchain; j++)
+					chains[j].updateMoveWeights();
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the density of states estimates of all chains have converged.
+	 */
+	private boolean isDosConverged() {
+		for(int k = 0; k < nchain; k++)
+			if(!((WangLandauChain)chains[k]).isConverged())
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Decides if sampling should be stopped in automatic mode: when the effective sample
+	 * size of the coldest chain of each target (reliably) reaches the target or the time
+	 * budget is over.
+	 */
+	private boolean stopSampling(long deadline) {
+		if(deadline > 0 && System.nanoTime() >= deadline)
+			return true;
+		if(stopEss <= 0)
+			return false;
+		for(int k = 0; k < nchain; k += chainsPerTarget)
+			if(!chains[k].isIatReliable() || chains[k].getEss() < stopEss)
+				return false;
+		return true;
 	}
 	
 	public void makeStep() {
-		int j, k;
 		// make steps
-		for(k = 0; k < nchain; k++)
+		for(int k = 0; k < nchain; k++)
 			chains[k].makeStep();
 		// try one swap
 		if(nchain > 1 && ++lastSwap == swapFreq) {
 			lastSwap = 0;
-			j = Utils.generator.nextInt(nchain-1);
-			k = j+1;	// attempt to swap consecutive chains only
-			if(chains[j].trySwapWith(chains[k]))
-				tsAccept.inc();
-			else
-				tsReject.inc();
+			trySwap();
 		}
 	}
 	
+	/**
+	 * Makes <code>n</code> steps. With rejection-free sampling or worker processes the
+	 * chains are advanced up to the next swap at once.
+	 */
+	public void makeSteps(int n) {
+		if(!kinetic && workers == null) {
+			for(int i = 0; i < n; i++)
+				makeStep();
+			return;
+		}
+		int freq = workers != null ? Math.max(swapFreq, WORKER_SWAP_FREQ) : swapFreq;
+		while(n > 0) {
+			int m = nchain > 1 ? Math.min(n, freq-lastSwap) : n;
+			if(workers != null) {
+				workers.makeSteps(m);
+			} else {
+				for(int k = 0; k < nchain; k++)
+					chains[k].makeSteps(m);
+			}
+			n -= m;
+			if(nchain > 1 && (lastSwap += m) == freq) {
+				lastSwap = 0;
+				trySwap();
+			}
+		}
+	}
+	
+	/**
+	 * Collects the pairs of chains to swap between: consecutive chains of the same target
+	 * and chains at the same heat level of neighbouring targets.
+	 */
+	private void initSwapPairs() {
+		int ntarget = targetDists.length, n = 0;
+		swapPairs = new int[ntarget*(chainsPerTarget-1)+(ntarget-1)*chainsPerTarget][];
+		for(int k = 0; k < nchain-1; k++)
+			if((k+1)%chainsPerTarget != 0)
+				swapPairs[n++] = new int[] { k, k+1 };
+		for(int k = 0; k < nchain-chainsPerTarget; k++)
+			swapPairs[n++] = new int[] { k, k+chainsPerTarget };
+	}
+	
+	private void trySwap() {
+		int[] pair = swapPairs[rnd.nextInt(swapPairs.length)];
+		long time = swapTimes != null && (++swapTimeCnt & Metrics.TIME_MASK) == 0 ? System.nanoTime() : 0;
+		Object event = events != null ? events.beginSwap() : null;
+		boolean acc = workers != null ? workers.trySwap(pair[0], pair[1]) : chains[pair[0]].trySwapWith(chains[pair[1]]);
+		if(acc)
+			tsAccept.inc();
+		else
+			tsReject.inc();
+		if(event != null)
+			events.endSwap(event, pair[0]+1, pair[1]+1, acc);
+		if(time != 0)
+			swapTimes.inc(Metrics.timeBucket(System.nanoTime()-time));
+	}
+	
 	public void tuneStep(int j, int step) {
 		// make step and try swap
 		int k = j+1;
+		if(events != null && step % tempTuneFreq == 0)
+			tuneEvent = events.beginPhase("tuning", j+1);
 		chains[j].makeStep();
 		chains[k].makeStep();
-		if(chains[j].trySwapWith(chains[k])) {
+		Object event = events != null ? events.beginSwap() : null;
+		boolean acc = chains[j].trySwapWith(chains[k]);
+		if(acc) {
 			tsAccept.inc();
 		} else {
 			tsReject.inc();
 		}
+		if(event != null)
+			events.endSwap(event, j+1, k+1, acc);
 		
 		if((step+1) % tempTuneFreq == 0) {
 			// tune temperatures
 			double mult = Math.pow(1.5, 1-(double)step/(tunePerChain-1));
 			if(tsAccept.getRate() < targetAccept)
 				mult = 1/mult;
-			for(int i = k; i < nchain; i++) {
+			int end = (j/chainsPerTarget+1)*chainsPerTarget;	// end of the target's chains
+			for(int i = k; i < end; i++) {
 				double x = chains[i].getHeat()*mult;
 				if(chains[i-1].getHeat() < x && x < 100) {
 					chains[i].changeHeat(x);
 				}
 			}
 			tuneReset(j);
+			endPhase(tuneEvent);
+			tuneEvent = null;
 		}
 	}
 
 	private void tuneReset(int j) {
-		chains[j].jumpTo(ref);
-		chains[j+1].jumpTo(ref);
+		chains[j].jumpTo(ref, 0);
+		chains[j+1].jumpTo(ref, 0);
 		chains[j].chainSwap.reset();
 		chains[j+1].chainSwap.reset();
 		totalSwaps.reset();
 	}
 
 
+	/**
+	 * Takes a sample in each chain.
+	 * @return false if the sample of the coldest chain of any target was rejected
+	 */
 	public boolean sample() {
-		boolean succ = chains[0].sample();
-		for(int k = 1; k < nchain; k++)
-			chains[k].sample();
+		if(workers != null)
+			return workers.sample(chainsPerTarget, sampleWriter, sampleListener);
+		boolean succ = true;
+		for(int k = 0; k < nchain; k++) {
+			if(chains[k].sample()) {
+				if(events != null && chains[k].isOutput())
+					events.sample(k+1, chains[k].getCurDist());
+			} else if(k%chainsPerTarget == 0) {
+				succ = false;
+			}
+		}
 		return succ;
 	}
 
 	private void printStats() {
+		if(targetDists.length > 1)
+			printTempInfo("\nChain dists+temps:");
 		for(int k = 0; k < nchain; k++)
 			chains[k].printStats();
 		
@@ -198,6 +1017,104 @@ public class DistSampler {
 		}
 		
 		System.out.println(totalSwaps);
+		
+		if(bandMin >= 0) {
+			System.out.println("\n** Density of states **\n");
+			System.out.println("log g(d) relative to d = "+bandMin+" (mean over chains) and steps at d:");
+			for(int d = bandMin; d <= bandMax; d++) {
+				double logDos = 0;
+				long cnt = 0;
+				for(int k = 0; k < nchain; k++) {
+					logDos += ((WangLandauChain)chains[k]).getLogDos(d);
+					cnt += chains[k].getDistCnts().get(d);
+				}
+				if(!Double.isNaN(logDos))
+					System.out.println(d+"\t"+String.format(Locale.US, "%.3f", logDos/nchain)+"\t"+cnt);
+			}
+		}
+		
+		if(adaptMoves) {
+			System.out.println("\n** Move weights **\n");
+			for(int i = 0; i < chains[0].getMoveWeights().length; i++) {
+				System.out.print("* "+String.format(Locale.US, "%-11s", chains[0].getCntGroups()[i].getName()+": "));
+				for(int k = 0; k < nchain; k++)
+					System.out.print(String.format(Locale.US, "%7.3f", chains[k].getMoveWeights()[i]));
+				System.out.println();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the distance histograms (steps spent at and distinct alignments sampled at each
+	 * distance) of all chains. In binary form (for file names ending in <code>.bin</code>) the
+	 * number of chains is followed by the two histograms of each chain, see
+	 * {@link Histogram#writeBinary(java.io.DataOutput)}. Otherwise a tab separated table is
+	 * written with the counts merged over all chains followed by the step counts per chain.
+	 * With sketch statistics the distinct alignments are HyperLogLog estimates: rounded in
+	 * binary form, and in the table given as <code>uniqsEst</code> with their standard
+	 * error <code>uniqsErr</code>.
+	 */
+	public void writeHists(String file) throws IOException {
+		if(file.endsWith(".bin")) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(nchain);
+			for(int k = 0; k < nchain; k++) {
+				chains[k].getDistCnts().writeBinary(out);
+				getDistUniqs(chains[k]).writeBinary(out);
+			}
+			out.close();
+			return;
+		}
+		int maxD = distCalc.getMaxD();
+		boolean sketch = chains[0].isSketchStats();
+		Histogram cnts = new Histogram(maxD), uniqs = new Histogram(maxD);
+		for(int k = 0; k < nchain; k++) {
+			cnts.add(chains[k].getDistCnts());
+			uniqs.add(chains[k].getDistUniqs());
+		}
+		PrintWriter w = new PrintWriter(new FileWriter(file));
+		w.print(sketch ? "dist\tsteps\tuniqsEst\tuniqsErr" : "dist\tsteps\tuniqs");
+		for(int k = 0; k < nchain; k++)
+			w.print("\tsteps"+(k+1));
+		w.println();
+		for(int d = 0; d <= maxD; d++) {
+			double est = 0, var = 0;
+			if(sketch) {
+				// sum of the estimates of the chains, with independent errors
+				for(int k = 0; k < nchain; k++) {
+					HyperLogLog s = chains[k].getDistUniqSketch(d);
+					if(s != null) {
+						double e = s.estimate();
+						est += e;
+						var += e*e*s.getRelError()*s.getRelError();
+					}
+				}
+			}
+			if(cnts.get(d) == 0 && uniqs.get(d) == 0 && est == 0)
+				continue;
+			w.print(d+"\t"+cnts.get(d)+"\t"+(sketch ? String.format(Locale.US, "%.0f\t%.0f", est, Math.sqrt(var)) :
+					uniqs.get(d)));
+			for(int k = 0; k < nchain; k++)
+				w.print("\t"+chains[k].getDistCnts().get(d));
+			w.println();
+		}
+		w.close();
+	}
+	
+	/**
+	 * Returns the distinct alignments sampled by a chain at each distance, rounded
+	 * estimates with sketch statistics.
+	 */
+	private static Histogram getDistUniqs(DistChain chain) {
+		if(!chain.isSketchStats())
+			return chain.getDistUniqs();
+		Histogram h = new Histogram(chain.getDistUniqs().getMaxValue());
+		for(int d = 0; d <= h.getMaxValue(); d++) {
+			HyperLogLog s = chain.getDistUniqSketch(d);
+			if(s != null)
+				h.inc(d, Math.round(s.estimate()));
+		}
+		return h;
 	}
 	
 	private void printTempInfo(String str) {
@@ -0,0 +1,345 @@
+package base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The set of all slide, break and join moves possible from an {@link Align}ment, kept up
+ * to date as moves are applied, for rejection-free (n-fold way) sampling.
+ *
+ * <p>Moves are grouped into buckets by type, distance change and a key on which their
+ * proposal probability depends (the number of slidable rows in the window for slides, the
+ * number of non-gaps of the broken column for breaks and of the target column for joins),
+ * so all moves in a bucket have the same transition probability in any state of the same
+ * distance, length and number of singular columns. Applying a move only updates the moves
+ * of the columns around the change.
+ *
+ * <p>A move is identified by the code <code>col.id*stride+off</code>, where offsets
+ * <code>0..n-1</code> slide the character of the given row between the column and the next
+ * one, offsets <code>n..3n-1</code> break the character of row <code>(off-n)/2</code> into
+ * a new column to the left/right (<code>(off-n)%2</code>) and offsets <code>3n, 3n+1</code>
+ * join a singular column into the previous/next one.
+ *
+ * @author novadam
+ */
+class KineticMoves {
+
+	// move types
+	static final int SLIDE = 0, BREAK = 1, JOIN = 2;
+	
+	// sets of moves of a column to refresh
+	private static final int REFRESH_SLIDES = 1, REFRESH_BREAKS = 2, REFRESH_JOINS = 4, REFRESH_ALL = 7;
+
+	private Align align;
+	private DistCalc distCalc;
+	private int size;			// number of sequences
+	private int stride;			// number of move codes per column
+	private int maxDelta;		// bound on the distance change of a move
+	private int nkeys, ndeltas;
+	private int[] gapCol;
+
+	private int[] movePos = new int[0];		// move code -> position within its bucket (-1: impossible)
+	private int[] moveBucket = new int[0];	// move code -> bucket
+	private int[][] buckets;				// bucket -> codes of its moves
+	private int[] bucketSizes;
+	private int[] active;					// non-empty buckets
+	private int[] activePos;				// bucket -> position in active (-1: empty)
+	private int nactive;
+
+	KineticMoves(Align align, DistCalc distCalc) {
+		this.align = align;
+		this.distCalc = distCalc;
+		size = align.first.inds.length;
+		stride = 3*size+2;
+		maxDelta = 4*size;
+		nkeys = size+1;
+		ndeltas = 2*maxDelta+1;
+		gapCol = new int[size];
+		Arrays.fill(gapCol, -1);
+		int nb = 3*nkeys*ndeltas;
+		buckets = new int[nb][];
+		bucketSizes = new int[nb];
+		active = new int[nb];
+		activePos = new int[nb];
+		rebuild();
+	}
+
+	/**
+	 * Collects all moves from scratch, e.g. after the alignment has been replaced.
+	 */
+	void rebuild() {
+		Arrays.fill(movePos, -1);
+		Arrays.fill(bucketSizes, 0);
+		Arrays.fill(activePos, -1);
+		nactive = 0;
+		for(AlignCol col = align.first; col != null; col = col.next)
+			refresh(col, REFRESH_ALL);
+	}
+
+	int getActiveCnt() {
+		return nactive;
+	}
+
+	int getActive(int i) {
+		return active[i];
+	}
+
+	int getBucketSize(int bucket) {
+		return bucketSizes[bucket];
+	}
+
+	int getMove(int bucket, int i) {
+		return buckets[bucket][i];
+	}
+
+	int getMaxDelta() {
+		return maxDelta;
+	}
+
+	int bucketType(int bucket) {
+		return bucket/ndeltas/nkeys;
+	}
+
+	int bucketKey(int bucket) {
+		return bucket/ndeltas%nkeys;
+	}
+
+	int bucketDelta(int bucket) {
+		return bucket%ndeltas-maxDelta;
+	}
+
+	/**
+	 * Applies a move to the alignment and updates the affected moves.
+	 * @param code the code of a possible move
+	 * @return the change in the distance from the reference
+	 */
+	int apply(int code) {
+		AlignCol col = align.arena.get(code/stride), next = col.next;
+		int off = code%stride, delta = bucketDelta(moveBucket[code]);
+		if(off < size) {
+			int ch = col.inds[off];
+			align.setInd(col, off, next.inds[off]);
+			align.setInd(next, off, ch);
+			align.updateSing(col);
+			align.updateSing(next);
+			refreshAround(col, next);
+		} else if(off < 3*size) {
+			int row = (off-size)/2, ch = col.inds[row];
+			align.setInd(col, row, -1);
+			align.updateSing(col);
+			AlignCol newcol = align.newCol();
+			System.arraycopy(gapCol, 0, newcol.inds, 0, size);
+			newcol.inds[row] = ch;
+			if((off-size)%2 > 0) {
+				align.insertCol(newcol, col);
+				refreshAround(col, newcol);
+			} else {
+				align.insertCol(newcol, col.prev);
+				refreshAround(newcol, col);
+			}
+		} else {
+			int row = 0;
+			while(col.inds[row] < 0)
+				row++;
+			AlignCol jcol = off > 3*size ? next : col.prev;
+			align.setInd(jcol, row, col.inds[row]);
+			align.updateSing(jcol);
+			clear(col, 0, stride);
+			align.removeCol(col);
+			refreshAround(jcol, jcol);
+		}
+		return delta;
+	}
+
+	/**
+	 * Recollects the moves depending on the changed consecutive columns <code>first..last</code>
+	 * (at most two): slides depend on the column and the next one, breaks on the column only
+	 * and joins on the column and its neighbours.
+	 */
+	private void refreshAround(AlignCol first, AlignCol last) {
+		if(first.prev != null)
+			refresh(first.prev, REFRESH_SLIDES | REFRESH_JOINS);
+		refresh(first, REFRESH_ALL);
+		if(last != first)
+			refresh(last, REFRESH_ALL);
+		if(last.next != null)
+			refresh(last.next, REFRESH_JOINS);
+	}
+
+	/**
+	 * Recollects the given sets of moves identified by a column.
+	 */
+	private void refresh(AlignCol col, int sets) {
+		int[] inds = col.inds;
+		int base = col.id*stride, row, ch;
+		AlignCol next = col.next;
+
+		// slides
+		if((sets & REFRESH_SLIDES) != 0) {
+			clear(col, 0, size);
+			if(next != null) {
+				int[] inds2 = next.inds;
+				int s = 0;
+				for(row = 0; row < size; row++)
+					if(inds[row] >= 0 ^ inds2[row] >= 0)
+						s++;
+				for(row = 0; row < size; row++) {
+					if(inds[row] >= 0 ^ inds2[row] >= 0 && (inds[row] >= 0 ? col.singOrd : next.singOrd) < 0) {
+						int ch1 = inds[row], ch2 = inds2[row];
+						add(base+row, SLIDE, s, distCalc.distSingle(inds, row, ch2)+distCalc.distSingle(inds2, row, ch1)
+								-distCalc.distSingle(inds, row, ch1)-distCalc.distSingle(inds2, row, ch2));
+					}
+				}
+			}
+		}
+
+		// breaks
+		if((sets & REFRESH_BREAKS) != 0) {
+			clear(col, size, 3*size);
+			int k = col.nonGaps();
+			if(k > 1) {
+				for(row = 0; row < size; row++) {
+					if((ch = inds[row]) >= 0) {
+						int delta = distCalc.distSingle(inds, row, -1)+distCalc.distSingle(gapCol, row, ch)
+								-distCalc.distSingle(inds, row, ch);
+						add(base+size+2*row, BREAK, k, delta);
+						add(base+size+2*row+1, BREAK, k, delta);
+					}
+				}
+			}
+		}
+
+		// joins
+		if((sets & REFRESH_JOINS) != 0) {
+			clear(col, 3*size, stride);
+			if(col.singOrd >= 0) {
+				row = 0;
+				while(inds[row] < 0)
+					row++;
+				ch = inds[row];
+				for(int dir = 0; dir < 2; dir++) {
+					AlignCol jcol = dir > 0 ? next : col.prev;
+					int[] jinds;
+					if(jcol != null && (jinds=jcol.inds)[row] < 0)
+						add(base+3*size+dir, JOIN, jcol.nonGaps(), distCalc.distSingle(jinds, row, ch)
+								-distCalc.distSingle(inds, row, ch)-distCalc.distSingle(jinds, row, -1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the moves of a column with code offsets <code>from..to-1</code>.
+	 */
+	private void clear(AlignCol col, int from, int to) {
+		int base = col.id*stride;
+		if(ensureCapacity(col.id))
+			return;
+		for(int code = base+from; code < base+to; code++)
+			if(movePos[code] >= 0)
+				remove(code);
+	}
+
+	/**
+	 * Extends the move arrays to hold the moves of the column with the given id.
+	 * @return true if the arrays had to be extended
+	 */
+	private boolean ensureCapacity(int id) {
+		int need = (id+1)*stride;
+		if(need <= movePos.length)
+			return false;
+		int len = Math.max(need, 2*movePos.length), old = movePos.length;
+		movePos = Arrays.copyOf(movePos, len);
+		moveBucket = Arrays.copyOf(moveBucket, len);
+		Arrays.fill(movePos, old, len, -1);
+		return true;
+	}
+
+	private void add(int code, int type, int key, int delta) {
+		add(code, (type*nkeys+key)*ndeltas+delta+maxDelta);
+	}
+
+	private void add(int code, int b) {
+		int[] bucket = buckets[b];
+		int n = bucketSizes[b];
+		if(bucket == null) {
+			bucket = buckets[b] = new int[8];
+		} else if(n == bucket.length) {
+			bucket = buckets[b] = Arrays.copyOf(bucket, 2*n);
+		}
+		bucket[n] = code;
+		movePos[code] = n;
+		moveBucket[code] = b;
+		bucketSizes[b] = n+1;
+		if(n == 0) {
+			activePos[b] = nactive;
+			active[nactive++] = b;
+		}
+	}
+
+	private void remove(int code) {
+		int b = moveBucket[code], pos = movePos[code];
+		int n = --bucketSizes[b];
+		int last = buckets[b][n];
+		buckets[b][pos] = last;
+		movePos[last] = pos;
+		movePos[code] = -1;
+		if(n == 0) {
+			int apos = activePos[b];
+			int lastb = active[--nactive];
+			active[apos] = lastb;
+			activePos[lastb] = apos;
+			activePos[b] = -1;
+		}
+	}
+
+	/**
+	 * Writes the moves in their exact order within the buckets (which determines the move
+	 * selected by a random index).
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(nactive);
+		for(int i = 0; i < nactive; i++) {
+			int b = active[i];
+			out.writeInt(b);
+			out.writeInt(bucketSizes[b]);
+			for(int j = 0; j < bucketSizes[b]; j++)
+				out.writeInt(buckets[b][j]);
+		}
+	}
+
+	/**
+	 * Restores the moves written by {@link #writeState(DataOutput)}, once the alignment
+	 * state has been restored.
+	 */
+	void readState(DataInput in) throws IOException {
+		Arrays.fill(movePos, -1);
+		Arrays.fill(bucketSizes, 0);
+		Arrays.fill(activePos, -1);
+		nactive = 0;
+		int n = in.readInt();
+		for(int i = 0; i < n; i++) {
+			int b = in.readInt(), size = in.readInt();
+			for(int j = 0; j < size; j++) {
+				int code = in.readInt();
+				ensureCapacity(code/stride);
+				add(code, b);
+			}
+		}
+	}
+
+	/**
+	 * Verifies that the collected moves match those collected from scratch.
+	 * @throws Error if an inconsistency is found
+	 */
+	void checkCons() {
+		KineticMoves test = new KineticMoves(align, distCalc);
+		if(test.nactive != nactive)
+			throw new Error("Inconsistent number of move buckets: "+nactive+" vs. "+test.nactive);
+		for(int b = 0; b < bucketSizes.length; b++)
+			if(test.bucketSizes[b] != bucketSizes[b])
+				throw new Error("Inconsistent move bucket "+b+": "+bucketSizes[b]+" vs. "+test.bucketSizes[b]);
+	}
+}
@@ -0,0 +1,251 @@
+package base;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import utils.CntGroup;
+import utils.Counter;
+import utils.Histogram;
+
+/**
+ * Writes live metrics of the chains of a sampler every few seconds as JSON lines, for
+ * watching long runs and finding hot spots without a profiler. Each line is a snapshot
+ * with the time since the start, the phase of the run and for each chain its steps, steps
+ * per second, current distance and heat and the rates of the move outcome counters in
+ * the last interval, followed by the swap acceptance of the last interval and the time
+ * histograms of the moves (summed over the chains, since the start).
+ *
+ * <p>Move times are measured for every {@link #TIME_SAMPLE}th move only, so timing costs
+ * little, and kept in histograms of log2 buckets: bucket <code>k</code> counts the times
+ * in <code>[2^(k-1), 2^k)</code> ns. The chains are read by the metrics thread without
+ * synchronization, so the values of a snapshot may be off by the steps made meanwhile.
+ *
+ * @author novadam
+ */
+public class Metrics implements Runnable {
+
+	static final int TIME_SAMPLE = 16;			// one in this many moves is timed (power of 2)
+	static final int TIME_MASK = TIME_SAMPLE-1;
+
+	private DistChain[] chains;
+	private Histogram swapTimes;
+	private CntGroup totalSwaps;
+	private Counter swapAccepts;
+	private long intervalMs;
+	private BufferedWriter out;
+	private Thread thread;
+	private volatile String phase = "init";
+	private volatile boolean closed = false;
+
+	// values of the previous snapshot
+	private long start, last;
+	private long[] lastSteps;
+	private int[][] lastCnts;					// chain -> counts of the counter groups and counters
+	private int lastSwaps, lastSwapAccepts;
+
+	/**
+	 * Starts writing the metrics.
+	 * @param file file to write the metrics into
+	 * @param seconds time between snapshots
+	 * @param chains chains of the sampler, with move timing enabled
+	 * @param swapTimes (sampled) times of the swaps of the sampler
+	 * @param totalSwaps swap counters of the sampler
+	 * @param swapAccepts counter of the accepted swaps
+	 */
+	public Metrics(String file, double seconds, DistChain[] chains, Histogram swapTimes, CntGroup totalSwaps,
+			Counter swapAccepts) throws IOException {
+		if(seconds <= 0)
+			throw new Error("Bad metrics interval: "+seconds);
+		out = new BufferedWriter(new FileWriter(file));
+		intervalMs = Math.max(1, (long)(seconds*1000));
+		this.chains = chains;
+		this.swapTimes = swapTimes;
+		this.totalSwaps = totalSwaps;
+		this.swapAccepts = swapAccepts;
+		lastSteps = new long[chains.length];
+		lastCnts = new int[chains.length][];
+		start = last = System.nanoTime();
+		thread = new Thread(this, "Metrics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the histogram bucket of a time in ns.
+	 */
+	static int timeBucket(long ns) {
+		return ns <= 0 ? 0 : 64-Long.numberOfLeadingZeros(ns);
+	}
+
+	/**
+	 * Returns a histogram for times in ns, see {@link #timeBucket(long)}.
+	 */
+	static Histogram newTimeHistogram() {
+		return new Histogram(63);
+	}
+
+	/**
+	 * Sets the phase of the run reported in the snapshots.
+	 */
+	public void setPhase(String phase) {
+		this.phase = phase;
+	}
+
+	/**
+	 * Writes a last snapshot and stops writing.
+	 */
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(!closed) {
+				try {
+					Thread.sleep(intervalMs);
+				} catch (InterruptedException e) {
+				}
+				write();
+			}
+		} catch (IOException e) {
+			System.out.println("Error writing metrics: "+e.getMessage());
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void write() throws IOException {
+		long now = System.nanoTime();
+		double secs = (now-last)/1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"time\":").append(format("%.3f", (now-start)/1e9));
+		sb.append(",\"phase\":\"").append(phase).append("\",\"chains\":[");
+		Map<String, Histogram> times = new LinkedHashMap<String, Histogram>();
+		for(int k = 0; k < chains.length; k++) {
+			DistChain chain = chains[k];
+			long steps = chain.getTotalSteps();
+			long d = steps >= lastSteps[k] ? steps-lastSteps[k] : steps;	// counts are reset by some phases
+			lastSteps[k] = steps;
+			sb.append(k > 0 ? "," : "").append("{\"chain\":").append(k+1);
+			sb.append(",\"steps\":").append(steps);
+			sb.append(",\"stepsPerSec\":").append(format("%.1f", secs > 0 ? d/secs : 0));
+			sb.append(",\"dist\":").append(chain.getCurDist());
+			sb.append(",\"target\":").append(chain.getTargetDist());
+			sb.append(",\"heat\":").append(format("%.4g", chain.getHeat()));
+			sb.append(",\"rates\":{");
+			lastCnts[k] = rates(sb, chain.getCntGroups(), lastCnts[k]);
+			sb.append("}}");
+
+			Histogram[] moveTimes = chain.getMoveTimes();
+			for(int m = 0; m < moveTimes.length; m++) {
+				String name = chain.getMoveName(m);
+				Histogram h = times.get(name);
+				if(h == null)
+					times.put(name, h = newTimeHistogram());
+				h.add(moveTimes[m]);
+			}
+		}
+		sb.append("]");
+
+		int swaps = totalSwaps.getCnt(), accepts = swapAccepts.getCnt();
+		if(swaps < lastSwaps) {
+			lastSwaps = 0;
+			lastSwapAccepts = 0;
+		}
+		if(swaps > lastSwaps)
+			sb.append(",\"swapAccept\":").append(format("%.4f", (double)(accepts-lastSwapAccepts)/(swaps-lastSwaps)));
+		lastSwaps = swaps;
+		lastSwapAccepts = accepts;
+
+		times.put("chainSwap", swapTimes);
+		sb.append(",\"moveTimes\":{");
+		boolean first = true;
+		for(Map.Entry<String, Histogram> e : times.entrySet()) {
+			Histogram h = e.getValue();
+			if(h.getTotal() == 0)
+				continue;
+			sb.append(first ? "" : ",").append("\"").append(e.getKey()).append("\":{\"n\":").append(h.getTotal());
+			sb.append(",\"p50Ns\":").append(quantile(h, 0.5)).append(",\"p99Ns\":").append(quantile(h, 0.99));
+			sb.append(",\"log2Hist\":[");
+			int top = h.getMaxValue();
+			while(top > 0 && h.get(top) == 0)
+				top--;
+			for(int b = 0; b <= top; b++)
+				sb.append(b > 0 ? "," : "").append(h.get(b));
+			sb.append("]}");
+			first = false;
+		}
+		sb.append("}}");
+		out.write(sb.toString());
+		out.newLine();
+		out.flush();
+		last = now;
+	}
+
+	/**
+	 * Appends the rates of the counters of each group in the interval since the previous
+	 * counts <code>prev</code> (null: since the start).
+	 * @return the current counts
+	 */
+	private static int[] rates(StringBuilder sb, CntGroup[] groups, int[] prev) {
+		int n = 0;
+		for(CntGroup group : groups)
+			n += 1+group.getCounters().size();
+		int[] cnts = new int[n];
+		n = 0;
+		for(CntGroup group : groups) {
+			cnts[n++] = group.getCnt();
+			for(Counter c : group.getCounters())
+				cnts[n++] = c.getCnt();
+		}
+		if(prev == null || prev.length != n)
+			prev = new int[n];
+		n = 0;
+		for(int g = 0; g < groups.length; g++) {
+			List<Counter> counters = groups[g].getCounters();
+			int total = cnts[n]-prev[n];
+			boolean reset = total < 0;
+			if(reset)
+				total = cnts[n];
+			sb.append(g > 0 ? "," : "").append("\"").append(groups[g].getName()).append("\":{\"n\":").append(total);
+			n++;
+			for(Counter c : counters) {
+				int d = reset ? cnts[n] : cnts[n]-prev[n];
+				sb.append(",\"").append(c.getName()).append("\":").append(format("%.4f", total > 0 ? (double)d/total : 0));
+				n++;
+			}
+			sb.append("}");
+		}
+		return cnts;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket of the <code>q</code> quantile of a time histogram.
+	 */
+	private static long quantile(Histogram h, double q) {
+		long need = (long)Math.ceil(q*h.getTotal()), sum = 0;
+		int b = 0;
+		while(b < h.getMaxValue() && (sum += h.get(b)) < need)
+			b++;
+		return b >= 63 ? Long.MAX_VALUE : 1L<<b;
+	}
+
+	private static String format(String fmt, double x) {
+		return String.format(Locale.US, fmt, x);
+	}
+}
@@ -0,0 +1,310 @@
+package base;
+
+import io.RawSequences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import utils.HashCounter;
+
+/**
+ * Exact uniform sampler of the alignments of two sequences at a given distance from a
+ * pairwise reference, by dynamic programming instead of MCMC.
+ *
+ * <p>An alignment of two sequences is a path through the (n+1)x(m+1) grid with match,
+ * gap-in-B and gap-in-A steps, and its distance from the reference adds up along the
+ * path: a match step costs 0 if the two characters are matched in the reference and 2
+ * otherwise, a gap step costs 1 unless the character is gapped in the reference. For each
+ * grid cell the number of paths from the origin is counted for each distance, so the
+ * number of alignments at each distance is known exactly and uniform samples are drawn
+ * by stochastic traceback. Distances are limited to the largest target, and only the
+ * distances allowed by the minimal costs of reaching the cell and of finishing from it
+ * are stored, which keeps the tables narrow at high accuracies. Counts are stored with a
+ * binary exponent per cell, as they grow exponentially with the sequence lengths.
+ *
+ * @author novadam
+ */
+public class PairSampler {
+
+	private static final long MAX_CELLS = 4000000;		// max. grid size
+	private static final long MAX_VALUES = 25000000;	// max. number of counts stored
+
+	private Align ref;
+	private DistCalc distCalc;
+	private int n, m;
+	private int[] refA, refB;		// reference partner of each character (-1: gap)
+
+	private int[][] lo;				// smallest distance stored in each cell
+	private double[][][] cnts;		// path counts by distance (scaled, null: no paths)
+	private int[][] exps;			// binary exponent of the counts of each cell
+	private Random rnd = new Random();
+	private File outputDir;			// directory of the sample files (null: current directory)
+
+	public PairSampler(Align ref) {
+		if(ref.names.length != 2)
+			throw new Error("Pairwise sampler needs 2 sequences instead of "+ref.names.length);
+		this.ref = ref;
+		distCalc = new DistCalc(ref);
+		n = ref.seqs[0].length();
+		m = ref.seqs[1].length();
+		refA = new int[n];
+		refB = new int[m];
+		for(AlignCol col = ref.first; col != null; col = col.next) {
+			if(col.inds[0] >= 0)
+				refA[col.inds[0]] = col.inds[1];
+			if(col.inds[1] >= 0)
+				refB[col.inds[1]] = col.inds[0];
+		}
+	}
+
+	/**
+	 * Sets the source of random numbers (by default the sampler creates its own generator).
+	 */
+	public void setRandom(Random rnd) {
+		this.rnd = rnd;
+	}
+
+	/**
+	 * Sets the directory to write the sample files into (by default the current directory).
+	 */
+	public void setOutputDir(File dir) {
+		outputDir = dir;
+	}
+
+	private int matchCost(int i, int j) {
+		return refA[i-1] == j-1 ? 0 : 2;
+	}
+
+	private int gapACost(int i) {
+		return refA[i-1] >= 0 ? 1 : 0;
+	}
+
+	private int gapBCost(int j) {
+		return refB[j-1] >= 0 ? 1 : 0;
+	}
+
+	/**
+	 * Fills the count tables for distances up to <code>maxDist</code>.
+	 * @return false if the tables would be too large
+	 */
+	public boolean prepare(int maxDist) {
+		if((long)(n+1)*(m+1) > MAX_CELLS)
+			return false;
+		int i, j;
+
+		// minimal costs from the origin and to the end
+		int[][] pre = new int[n+1][m+1], suf = new int[n+1][m+1];
+		for(i = 0; i <= n; i++) {
+			for(j = 0; j <= m; j++) {
+				int c = i+j == 0 ? 0 : Integer.MAX_VALUE;
+				if(i > 0 && j > 0)
+					c = Math.min(c, pre[i-1][j-1]+matchCost(i, j));
+				if(i > 0)
+					c = Math.min(c, pre[i-1][j]+gapACost(i));
+				if(j > 0)
+					c = Math.min(c, pre[i][j-1]+gapBCost(j));
+				pre[i][j] = c;
+			}
+		}
+		for(i = n; i >= 0; i--) {
+			for(j = m; j >= 0; j--) {
+				int c = i == n && j == m ? 0 : Integer.MAX_VALUE;
+				if(i < n && j < m)
+					c = Math.min(c, suf[i+1][j+1]+matchCost(i+1, j+1));
+				if(i < n)
+					c = Math.min(c, suf[i+1][j]+gapACost(i+1));
+				if(j < m)
+					c = Math.min(c, suf[i][j+1]+gapBCost(j+1));
+				suf[i][j] = c;
+			}
+		}
+		long total = 0;
+		for(i = 0; i <= n; i++)
+			for(j = 0; j <= m; j++)
+				total += Math.max(0, maxDist-suf[i][j]-pre[i][j]+1);
+		if(total > MAX_VALUES)
+			return false;
+
+		// path counts
+		lo = pre;
+		cnts = new double[n+1][m+1][];
+		exps = new int[n+1][m+1];
+		for(i = 0; i <= n; i++) {
+			for(j = 0; j <= m; j++) {
+				int hi = maxDist-suf[i][j];
+				if(lo[i][j] > hi)
+					continue;
+				double[] vals = new double[hi-lo[i][j]+1];
+				if(i+j == 0) {
+					vals[0] = 1;
+				} else {
+					int e = Integer.MIN_VALUE;
+					if(i > 0 && j > 0 && cnts[i-1][j-1] != null)
+						e = Math.max(e, exps[i-1][j-1]);
+					if(i > 0 && cnts[i-1][j] != null)
+						e = Math.max(e, exps[i-1][j]);
+					if(j > 0 && cnts[i][j-1] != null)
+						e = Math.max(e, exps[i][j-1]);
+					if(e == Integer.MIN_VALUE)
+						continue;
+					if(i > 0 && j > 0)
+						addFrom(vals, lo[i][j], i-1, j-1, matchCost(i, j), e);
+					if(i > 0)
+						addFrom(vals, lo[i][j], i-1, j, gapACost(i), e);
+					if(j > 0)
+						addFrom(vals, lo[i][j], i, j-1, gapBCost(j), e);
+					double max = 0;
+					for(double v : vals)
+						max = Math.max(max, v);
+					if(max == 0)
+						continue;
+					int k = Math.getExponent(max);
+					for(int d = 0; d < vals.length; d++)
+						vals[d] = Math.scalb(vals[d], -k);
+					exps[i][j] = e+k;
+				}
+				cnts[i][j] = vals;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the counts of cell <code>(pi, pj)</code>, shifted by the step cost, to
+	 * <code>vals</code> (holding distances from <code>from</code>, with exponent <code>e</code>).
+	 */
+	private void addFrom(double[] vals, int from, int pi, int pj, int cost, int e) {
+		double[] pvals = cnts[pi][pj];
+		if(pvals == null)
+			return;
+		int shift = exps[pi][pj]-e, plo = lo[pi][pj];
+		for(int d = Math.max(from, plo+cost); d < from+vals.length && d-cost-plo < pvals.length; d++)
+			vals[d-from] += Math.scalb(pvals[d-cost-plo], shift);
+	}
+
+	/**
+	 * Returns the count of paths at distance <code>d</code> in a cell as mantissa,
+	 * to be scaled by 2^<code>exps[i][j]</code> (0 if none).
+	 */
+	private double count(int i, int j, int d) {
+		double[] vals = cnts[i][j];
+		if(vals == null || d < lo[i][j] || d-lo[i][j] >= vals.length)
+			return 0;
+		return vals[d-lo[i][j]];
+	}
+
+	/**
+	 * Returns the base 10 logarithm of the number of alignments at distance <code>d</code>
+	 * (negative infinity if there are none).
+	 */
+	public double log10Count(int d) {
+		double c = count(n, m, d);
+		if(c == 0)
+			return Double.NEGATIVE_INFINITY;
+		return Math.log10(c)+exps[n][m]*Math.log10(2);
+	}
+
+	/**
+	 * Draws an alignment at distance <code>d</code> uniformly at random.
+	 * @return the alignment or null if there is none at this distance
+	 */
+	public Align sample(int d) {
+		if(count(n, m, d) == 0)
+			return null;
+		StringBuilder sa = new StringBuilder(), sb = new StringBuilder();
+		String a = ref.seqs[0], b = ref.seqs[1];
+		int i = n, j = m;
+		double[] w = new double[3];
+		while(i > 0 || j > 0) {
+			int[] costs = { i > 0 && j > 0 ? matchCost(i, j) : -1, i > 0 ? gapACost(i) : -1, j > 0 ? gapBCost(j) : -1 };
+			int[] pis = { i-1, i-1, i }, pjs = { j-1, j, j-1 };
+			int e = Integer.MIN_VALUE, k;
+			for(k = 0; k < 3; k++) {
+				w[k] = costs[k] < 0 ? 0 : count(pis[k], pjs[k], d-costs[k]);
+				if(w[k] > 0)
+					e = Math.max(e, exps[pis[k]][pjs[k]]);
+			}
+			double sum = 0;
+			for(k = 0; k < 3; k++) {
+				if(w[k] > 0)
+					w[k] = Math.scalb(w[k], exps[pis[k]][pjs[k]]-e);
+				sum += w[k];
+			}
+			double u = rnd.nextDouble()*sum;
+			for(k = 0; k < 2 && (w[k] == 0 || (u -= w[k]) >= 0); k++)
+				;
+			sa.append(k != 2 ? a.charAt(i-1) : '-');
+			sb.append(k != 1 ? b.charAt(j-1) : '-');
+			d -= costs[k];
+			i = pis[k];
+			j = pjs[k];
+		}
+		RawSequences raw = new RawSequences();
+		raw.add(ref.names[0], sa.reverse().toString());
+		raw.add(ref.names[1], sb.reverse().toString());
+		return new Align(raw);
+	}
+
+	/**
+	 * Takes <code>samples</code> samples at each target distance, printing and writing them
+	 * as the MCMC sampler does, and prints the number of alignments at the targets.
+	 * @param sampleLog log file to write the samples into (null: one FASTA file per sample)
+	 */
+	public void run(int[] targetDists, int samples, String sampleLog) {
+		boolean multi = targetDists.length > 1;
+		System.out.println("Exact pairwise sampling\n");
+		for(int t : targetDists)
+			System.out.println("Alignments at dist "+t+": "+formatCount(log10Count(t)));
+		System.out.println("\n*** Sampling ***\n");
+
+		SampleWriter writer;
+		try {
+			writer = new SampleWriter(distCalc, sampleLog, outputDir, 0);
+		} catch (IOException e) {
+			throw new Error("Cannot write samples to "+sampleLog+": "+e.getMessage());
+		}
+		HashCounter[] seen = new HashCounter[targetDists.length];
+		DistCalc[] firstCalcs = new DistCalc[targetDists.length];
+		for(int s = 1; s <= samples; s++) {
+			for(int k = 0; k < targetDists.length; k++) {
+				Align ali = sample(targetDists[k]);
+				if(ali == null)
+					continue;
+				if(seen[k] == null) {
+					seen[k] = new HashCounter();
+					firstCalcs[k] = new DistCalc(ali);
+				}
+				seen[k].inc(ali.getHashHi(), ali.getHashLo());
+				writer.add(multi ? "d"+targetDists[k] : null, s, targetDists[k], ali, firstCalcs[k]);
+			}
+		}
+		writer.close();
+
+		System.out.println("\n*** Statistics ***\n");
+		for(int k = 0; k < targetDists.length; k++) {
+			double log10 = log10Count(targetDists[k]);
+			if(seen[k] == null) {
+				System.out.println("No alignments at dist "+targetDists[k]);
+				continue;
+			}
+			// expected number of distinct alignments among uniform samples
+			double expected = samples;
+			if(log10 < 300) {
+				double cnt = Math.pow(10, log10);
+				expected = -Math.expm1(samples*Math.log1p(-1/cnt))*cnt;
+			}
+			System.out.println("Dist "+targetDists[k]+": alignments seen: "+seen[k].size()+" expected: "+
+					String.format(Locale.US, "%.1f", expected));
+		}
+	}
+
+	private static String formatCount(double log10) {
+		if(log10 == Double.NEGATIVE_INFINITY)
+			return "0";
+		if(log10 < 15)
+			return String.format(Locale.US, "%.0f", Math.pow(10, log10));
+		return String.format(Locale.US, "%.4fe%d", Math.pow(10, log10-Math.floor(log10)), (long)Math.floor(log10));
+	}
+}
@@ -0,0 +1,19 @@
+package base;
+
+/**
+ * Receives the samples taken by the chains, as an alternative to reading the sample
+ * files and printed lines.
+ *
+ * @author novadam
+ */
+public interface SampleListener {
+
+	/**
+	 * Called for each sample, on the sampling thread. The alignment is the current state of
+	 * the chain and is only valid until the method returns (copy it to keep it).
+	 * @param chain id of the chain the sample was taken by
+	 * @param dist distance of the sample from the reference
+	 * @param ali the sample
+	 */
+	void sampled(int chain, int dist, AlignView ali);
+}
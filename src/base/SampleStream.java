@@ -0,0 +1,129 @@
+package base;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pull-based access to the samples of a {@link DistSampler}: the sampler runs on a
+ * background thread and the samples (copies of the alignments) are handed over through
+ * a small queue, so sampling waits while the consumer is busy. Created by
+ * {@link DistSampler#stream(int, int, int)}.
+ *
+ * @author novadam
+ */
+public class SampleStream implements Iterator<SampleStream.Sample>, SampleListener {
+
+	private static final int QUEUE_SIZE = 16;		// max. samples waiting to be consumed
+
+	/**
+	 * A sample taken by a chain.
+	 */
+	public static class Sample {
+		public final int chain;
+		public final int dist;
+		public final Align ali;
+
+		Sample(int chain, int dist, Align ali) {
+			this.chain = chain;
+			this.dist = dist;
+			this.ali = ali;
+		}
+	}
+
+	private static final Sample END = new Sample(-1, -1, null);
+
+	private DistSampler sampler;
+	private BlockingQueue<Sample> queue = new ArrayBlockingQueue<Sample>(QUEUE_SIZE);
+	private Thread thread;
+	private Sample next;
+	private volatile Throwable failure;
+
+	SampleStream(DistSampler sampler, final int burnin, final int samples, final int rate) {
+		this.sampler = sampler;
+		sampler.setSampleListener(this);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SampleStream.this.sampler.run(burnin, samples, rate);
+				} catch (Throwable e) {
+					failure = e;
+				} finally {
+					put(END);
+				}
+			}
+		}, "SampleStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void sampled(int chain, int dist, AlignView ali) {
+		put(new Sample(chain, dist, ali.copy()));
+	}
+
+	private void put(Sample s) {
+		try {
+			queue.put(s);
+		} catch (InterruptedException e) {
+			throw new Error("Interrupted while passing a sample");
+		}
+	}
+
+	/**
+	 * Waits for the next sample.
+	 * @return false if the run has finished
+	 */
+	@Override
+	public boolean hasNext() {
+		if(next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				throw new Error("Interrupted while waiting for a sample");
+			}
+			if(next == END)
+				queue.offer(END);		// for later calls
+		}
+		if(next == END && failure != null)
+			throw new Error("Sampling failed: "+failure, failure);
+		return next != END;
+	}
+
+	@Override
+	public Sample next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		Sample s = next;
+		next = null;
+		return s;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops sampling (after burn-in, if still in progress) and waits for the run to finish.
+	 */
+	public void close() {
+		sampler.stop();
+		while(next != END) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		queue.offer(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package base;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the samples of the chains on a background thread, so that sampling only pays
+ * for copying the alignment. Samples are passed through a bounded queue: the sampling
+ * thread waits only if the writer falls behind by the whole queue (counted as stalls).
+ * The distance from the first sample, the printed line of each sample and the output
+ * are all made on the writer thread, in the order the samples were taken.
+ *
+ * <p>Samples are written either to one FASTA file per sample (<code>sampleN.fsa</code>, or
+ * <code>name_N.fsa</code> for named chains) or into a single StatAlign style log file,
+ * which is gzip compressed if its name ends with <code>.gz</code>. Each sample of the log
+ * has a <code>Dist:</code> line with the printed distances and its alignment in
+ * <code>Alignment:</code> lines, readable by {@link io.SampleReader}. The log is flushed
+ * to the disk by {@link #sync()} when the sampler writes a checkpoint.
+ *
+ * @author novadam
+ */
+public class SampleWriter implements Runnable {
+
+	private static final int QUEUE_SIZE = 1024;		// max. samples waiting to be written
+
+	private static class Sample {
+		String name;
+		int num;
+		int dist;
+		Align ali;
+		DistCalc firstCalc;
+		CountDownLatch synced;			// not null: marker of a sync
+	}
+
+	/**
+	 * Input stream ending at cut off compressed data (of an interrupted run) instead of
+	 * failing, so that readers do not lose the data they have buffered.
+	 */
+	private static class CutInputStream extends FilterInputStream {
+		CutInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				return super.read();
+			} catch (EOFException e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return super.read(b, off, len);
+			} catch (EOFException e) {
+				return -1;
+			}
+		}
+	}
+
+	private static final Sample END = new Sample();
+
+	private DistCalc refCalc;
+	private BufferedWriter log;			// null: samples are written to separate files
+	private FileOutputStream logOut;
+	private File dir;					// directory of the separate files (null: current directory)
+	private long logSample;				// index of the next sample in the log
+	private BlockingQueue<Sample> queue = new ArrayBlockingQueue<Sample>(QUEUE_SIZE);
+	private Thread thread;
+	private volatile long stalls = 0;
+	private boolean failed = false;
+
+	/**
+	 * @param refCalc distance calculator of the reference
+	 * @param logFile log file to write the samples into (null: one FASTA file per sample)
+	 * @param dir directory to write the FASTA files into (null: current directory)
+	 * @param firstSample number of samples taken before resuming a run (the samples after
+	 *   these are removed from the log, numbering continues from the samples kept)
+	 */
+	public SampleWriter(DistCalc refCalc, String logFile, File dir, long firstSample) throws IOException {
+		this.refCalc = refCalc;
+		this.dir = dir;
+		if(logFile != null) {
+			File file = new File(logFile), old = null;
+			if(firstSample > 0 && file.exists()) {
+				old = new File(logFile+".old");
+				if(!file.renameTo(old))
+					throw new IOException("cannot rename "+file+" to "+old);
+			}
+			OutputStream out = logOut = new FileOutputStream(file);
+			if(logFile.endsWith(".gz"))
+				out = gzip(out);
+			log = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			if(old != null) {
+				logSample = copyLog(old, firstSample, refCalc.getSeqNum());
+				old.delete();
+				if(logSample < firstSample)
+					System.out.println("Warning: the sample log has only "+logSample+" of the "+firstSample+
+							" samples taken before the checkpoint, numbering continues from "+logSample);
+			}
+		}
+		thread = new Thread(this, "SampleWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns a gzip stream whose flush writes out all data compressed so far. This needs
+	 * Java 7; on older JVMs the data since the last full block is only written by closing.
+	 */
+	private static OutputStream gzip(OutputStream out) throws IOException {
+		try {
+			return GZIPOutputStream.class.getConstructor(OutputStream.class, boolean.class).newInstance(out, true);
+		} catch (NoSuchMethodException e) {
+			return new GZIPOutputStream(out);
+		} catch (InvocationTargetException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		} catch (Exception e) {
+			throw new Error("Cannot create gzip stream: "+e, e);
+		}
+	}
+
+	/**
+	 * Copies at most the first <code>samples</code> samples of an earlier log into the log.
+	 * The last sample of the earlier log is dropped if it is incomplete, i.e. has fewer
+	 * than two <code>Alignment:</code> lines per sequence or a cut off last line.
+	 * @param seqs number of sequences of the samples
+	 * @return the number of samples copied
+	 */
+	private long copyLog(File old, long samples, int seqs) throws IOException {
+		InputStream in = new FileInputStream(old);
+		if(old.getName().endsWith(".gz.old"))
+			in = new CutInputStream(new GZIPInputStream(in));
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		StringBuilder cur = new StringBuilder();		// lines of the current sample
+		int lines = 0, seqLen = 0, lastLen = 0;			// alignment lines, length of the first and last sequence line
+		long copied = 0;
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if(!line.startsWith("Sample ") || tab < 0)
+					throw new IOException("bad sample log "+old);
+				long n = Long.parseLong(line.substring(7, tab));
+				if(n != copied) {
+					log.write(cur.toString());
+					cur.setLength(0);
+					lines = 0;
+					if(++copied >= samples)
+						break;
+				}
+				cur.append(line).append('\n');
+				if(line.startsWith("Alignment:", tab+1)) {
+					if(++lines == 2)
+						seqLen = line.length();
+					lastLen = line.length();
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("bad sample log "+old);
+		} finally {
+			r.close();
+		}
+		if(copied < samples && lines == 2*seqs && lastLen == seqLen) {
+			log.write(cur.toString());
+			copied++;
+		}
+		return copied;
+	}
+
+	/**
+	 * Queues a sample for writing.
+	 * @param name name of the chain (null: unnamed)
+	 * @param num number of the sample in the chain, from 1
+	 * @param dist distance of the sample from the reference
+	 * @param ali the sample, must not be changed afterwards
+	 * @param firstCalc distance calculator of the first sample of the chain
+	 */
+	public void add(String name, int num, int dist, Align ali, DistCalc firstCalc) {
+		Sample s = new Sample();
+		s.name = name;
+		s.num = num;
+		s.dist = dist;
+		s.ali = ali;
+		s.firstCalc = firstCalc;
+		put(s);
+	}
+
+	private void put(Sample s) {
+		if(queue.offer(s))
+			return;
+		stalls++;
+		try {
+			queue.put(s);
+		} catch (InterruptedException e) {
+			throw new Error("Interrupted while queueing a sample");
+		}
+	}
+
+	/**
+	 * Waits until the samples queued so far are written and flushes the log to the disk.
+	 */
+	public void sync() {
+		Sample s = new Sample();
+		s.synced = new CountDownLatch(1);
+		put(s);
+		try {
+			s.synced.await();
+		} catch (InterruptedException e) {
+			throw new Error("Interrupted while syncing the samples");
+		}
+	}
+
+	/**
+	 * Returns the number of times sampling had to wait for the writer.
+	 */
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Writes all queued samples and stops the background thread.
+	 */
+	public void close() {
+		put(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			Sample s;
+			try {
+				s = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(s == END)
+				break;
+			if(s.synced != null) {
+				if(log != null && !failed) {
+					try {
+						log.flush();
+						logOut.getFD().sync();
+					} catch (IOException e) {
+						System.out.println("Error writing samples: "+e.getMessage());
+						failed = true;
+					}
+				}
+				s.synced.countDown();
+				continue;
+			}
+			if(!failed) {
+				try {
+					write(s);
+				} catch (IOException e) {
+					System.out.println("Error writing samples: "+e.getMessage());
+					failed = true;
+				}
+			}
+		}
+		if(log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				System.out.println("Error writing samples: "+e.getMessage());
+			}
+		}
+	}
+
+	private void write(Sample s) throws IOException {
+		int d2 = s.firstCalc.dist(s.ali);	// distance from first sample
+		String line = (s.name != null ? s.name+"\t" : "")+s.num+"\t"+s.dist+"\t"+
+				String.format(Locale.US, "%.2f", refCalc.dist2acc(s.dist))+"\t"+d2+"\t"+
+				String.format(Locale.US, "%.2f", s.firstCalc.dist2acc(d2));
+		System.out.println(line);
+
+		if(log == null) {
+			String file = s.name != null ? s.name+"_"+s.num : "sample"+s.num;
+			BufferedWriter w = new BufferedWriter(new FileWriter(new File(dir, file+".fsa")));
+			try {
+				w.write(s.ali.toString());
+			} finally {
+				w.close();
+			}
+			return;
+		}
+		String prefix = "Sample "+logSample+"\t";
+		log.write(prefix+"Dist:\t"+line);
+		log.newLine();
+		for(String l : s.ali.toString().split("\n")) {
+			log.write(prefix+"Alignment:\t"+l);
+			log.newLine();
+		}
+		logSample++;
+	}
+}
@@ -0,0 +1,177 @@
+package base;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of the sampler, so that its phases, swaps and samples can
+ * be lined up with GC and I/O on the timeline of a recording:
+ * <ul>
+ * <li><code>adsample.Phase</code>: tuning cycles, initialization, coupling, burn-in,
+ *   sampling and checkpoints, with start and duration (and the chain for tuning cycles)
+ * <li><code>adsample.Swap</code>: swap attempts with the chain pair and acceptance
+ * <li><code>adsample.Sample</code>: samples of the output chains with their distance
+ * </ul>
+ * The events are defined at run time through <code>jdk.jfr.EventFactory</code> (JDK 11 and
+ * later), by reflection, so the sampler still builds and runs on older JVMs. They are
+ * disabled by default and have to be enabled in the settings of the recording, e.g. by
+ * <code>&lt;event name="adsample.Swap"&gt;&lt;setting name="enabled"&gt;true&lt;/setting&gt;&lt;/event&gt;</code>
+ * in a .jfc file. While disabled, a phase or sample costs one check of its enabled state,
+ * while swaps, which are far more frequent, check it only every {@link #SWAP_RECHECK} attempts.
+ *
+ * @author novadam
+ */
+public class SamplerEvents {
+
+	private static final String CATEGORY = "AlignDistSample";
+	private static final int SWAP_RECHECK = 1024;		// swap attempts between checks of the enabled state
+
+	private Method newEvent, set, begin, commit, isEnabled;
+	private Object phaseFactory, swapFactory, sampleFactory;
+	private Object phaseProbe, swapProbe, sampleProbe;		// events for checking the enabled state
+	private boolean swapEnabled;
+	private int swapCheck = 0;								// swap attempts until the next check
+
+	// reflection of the event definition API
+	private Constructor<?> annotation, labelledValue;
+	private Class<?> nameType, labelType, categoryType, enabledType, stackTraceType;
+
+	/**
+	 * Registers the events.
+	 * @return the events or null if JFR is not available in this JVM
+	 */
+	public static SamplerEvents create() {
+		try {
+			return new SamplerEvents();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private SamplerEvents() throws Exception {
+		Class<?> annotationType = Class.forName("jdk.jfr.AnnotationElement");
+		Class<?> valueType = Class.forName("jdk.jfr.ValueDescriptor");
+		Class<?> factoryType = Class.forName("jdk.jfr.EventFactory");
+		Class<?> eventType = Class.forName("jdk.jfr.Event");
+		annotation = annotationType.getConstructor(Class.class, Object.class);
+		labelledValue = valueType.getConstructor(Class.class, String.class, List.class);
+		nameType = Class.forName("jdk.jfr.Name");
+		labelType = Class.forName("jdk.jfr.Label");
+		categoryType = Class.forName("jdk.jfr.Category");
+		enabledType = Class.forName("jdk.jfr.Enabled");
+		stackTraceType = Class.forName("jdk.jfr.StackTrace");
+		Method create = factoryType.getMethod("create", List.class, List.class);
+		newEvent = factoryType.getMethod("newEvent");
+		set = eventType.getMethod("set", int.class, Object.class);
+		begin = eventType.getMethod("begin");
+		commit = eventType.getMethod("commit");
+		isEnabled = eventType.getMethod("isEnabled");
+
+		phaseFactory = create.invoke(null, event("adsample.Phase", "Sampler Phase"),
+				Arrays.asList(field(String.class, "phase", "Phase"), field(int.class, "chain", "Chain")));
+		swapFactory = create.invoke(null, event("adsample.Swap", "Chain Swap"),
+				Arrays.asList(field(int.class, "chainA", "Chain A"), field(int.class, "chainB", "Chain B"),
+						field(boolean.class, "accepted", "Accepted")));
+		sampleFactory = create.invoke(null, event("adsample.Sample", "Sample"),
+				Arrays.asList(field(int.class, "chain", "Chain"), field(int.class, "dist", "Distance")));
+		phaseProbe = newEvent.invoke(phaseFactory);
+		swapProbe = newEvent.invoke(swapFactory);
+		sampleProbe = newEvent.invoke(sampleFactory);
+	}
+
+	/**
+	 * Returns the annotations of an event type, disabled by default and without stack traces.
+	 */
+	private List<Object> event(String name, String label) throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add(annotation.newInstance(nameType, name));
+		list.add(annotation.newInstance(labelType, label));
+		list.add(annotation.newInstance(categoryType, new String[] { CATEGORY }));
+		list.add(annotation.newInstance(enabledType, Boolean.FALSE));
+		list.add(annotation.newInstance(stackTraceType, Boolean.FALSE));
+		return list;
+	}
+
+	private Object field(Class<?> type, String name, String label) throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add(annotation.newInstance(labelType, label));
+		return labelledValue.newInstance(type, name, list);
+	}
+
+	private Object call(Method method, Object event, Object... args) {
+		try {
+			return method.invoke(event, args);
+		} catch (Exception e) {
+			throw new Error("Cannot emit JFR event: "+e, e);
+		}
+	}
+
+	private boolean enabled(Object probe) {
+		return (Boolean)call(isEnabled, probe);
+	}
+
+	/**
+	 * Starts a duration event (null if the event type is disabled).
+	 */
+	private Object start(Object factory, Object probe) {
+		if(!enabled(probe))
+			return null;
+		Object event = call(newEvent, factory);
+		call(begin, event);
+		return event;
+	}
+
+	/**
+	 * Starts a phase (chain -1 if not of a chain).
+	 * @return the event to pass to {@link #endPhase(Object)} (null if disabled)
+	 */
+	public Object beginPhase(String phase, int chain) {
+		Object event = start(phaseFactory, phaseProbe);
+		if(event != null) {
+			call(set, event, 0, phase);
+			call(set, event, 1, chain);
+		}
+		return event;
+	}
+
+	public void endPhase(Object event) {
+		if(event != null)
+			call(commit, event);
+	}
+
+	/**
+	 * Starts a swap attempt.
+	 * @return the event to pass to {@link #endSwap(Object, int, int, boolean)} (null if disabled)
+	 */
+	public Object beginSwap() {
+		if(--swapCheck <= 0) {
+			swapCheck = SWAP_RECHECK;
+			swapEnabled = enabled(swapProbe);
+		}
+		return swapEnabled ? start(swapFactory, swapProbe) : null;
+	}
+
+	public void endSwap(Object event, int a, int b, boolean accepted) {
+		if(event == null)
+			return;
+		call(set, event, 0, a);
+		call(set, event, 1, b);
+		call(set, event, 2, accepted);
+		call(commit, event);
+	}
+
+	/**
+	 * Emits the sample of a chain.
+	 */
+	public void sample(int chain, int dist) {
+		Object event = start(sampleFactory, sampleProbe);
+		if(event == null)
+			return;
+		call(set, event, 0, chain);
+		call(set, event, 1, dist);
+		call(commit, event);
+	}
+}
@@ -0,0 +1,167 @@
+package base;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime verification of the incrementally tracked state of chains, cheap enough to be
+ * left on in production runs (unlike {@link utils.Utils#DEBUG}, which checks every step).
+ * Every <code>N</code> steps, or every <code>T</code> seconds, a chain passes a copy of its
+ * alignment and its tracked distance to the verifier, which checks the consistency of the
+ * alignment and recalculates the distance from scratch on a background thread. Snapshots
+ * are dropped (counted as skipped) rather than waited for if the verifier falls behind.
+ *
+ * <p>A drift found is reported with the last move made before the snapshot. As a drift
+ * may have been caused by any move since the previous check, the chain then resyncs its
+ * distance and checks every step inline for a while, so that a recurring drift is
+ * reported with the exact move causing it.
+ *
+ * @author novadam
+ */
+public class Verifier implements Runnable {
+
+	private static final int QUEUE_SIZE = 16;			// max. snapshots waiting to be checked
+	private static final int MAX_REPORTS = 20;			// max. drifts reported in detail
+
+	private static class Snapshot {
+		DistChain chain;
+		long step;
+		String move;
+		int dist;
+		Align ali;
+	}
+
+	private static final Snapshot END = new Snapshot();
+
+	private long periodSteps;
+	private long periodNs;
+	private DistCalc distCalc;			// used by the verifier thread only
+	private List<DistChain> chains = new CopyOnWriteArrayList<DistChain>();
+	private BlockingQueue<Snapshot> queue = new ArrayBlockingQueue<Snapshot>(QUEUE_SIZE);
+	private Thread thread;
+	private AtomicLong checks = new AtomicLong(), skipped = new AtomicLong(), drifts = new AtomicLong();
+
+	/**
+	 * @param ref reference of the chains
+	 * @param steps chains are checked every this many steps (0: only by time)
+	 * @param seconds chains are checked every this many seconds (0: only by steps)
+	 */
+	public Verifier(Align ref, long steps, double seconds) {
+		if(steps < 0 || seconds < 0 || (steps == 0 && seconds == 0))
+			throw new Error("Bad verification period: "+steps+" steps, "+seconds+" s");
+		periodSteps = steps;
+		periodNs = (long)(seconds*1e9);
+		distCalc = new DistCalc(ref);
+		thread = new Thread(this, "Verifier");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the number of steps between checks (0: checked by time only).
+	 */
+	public long getPeriodSteps() {
+		return periodSteps;
+	}
+
+	void add(DistChain chain) {
+		chains.add(chain);
+	}
+
+	/**
+	 * Queues a snapshot of a chain for checking, called on the thread of the chain.
+	 * @param ali copy of the alignment of the chain, not changed afterwards
+	 */
+	void check(DistChain chain, long step, String move, int dist, Align ali) {
+		Snapshot s = new Snapshot();
+		s.chain = chain;
+		s.step = step;
+		s.move = move;
+		s.dist = dist;
+		s.ali = ali;
+		if(!queue.offer(s))
+			skipped.incrementAndGet();
+	}
+
+	/**
+	 * Reports a drift found in a chain.
+	 * @param resync if true the chain is made to resync its distance and check every step for a while
+	 */
+	void drift(DistChain chain, long step, String move, String msg, boolean resync) {
+		checks.incrementAndGet();
+		if(drifts.incrementAndGet() <= MAX_REPORTS)
+			System.out.println("Verification: drift in chain "+(chain.getId()+1)+" at step "+step+" after "+move+": "+msg);
+		if(resync)
+			chain.requestResync();
+	}
+
+	/**
+	 * Counts a check made by a chain inline that found no drift.
+	 */
+	void passed() {
+		checks.incrementAndGet();
+	}
+
+	/**
+	 * Checks the queued snapshots and stops the background thread.
+	 */
+	public void close() {
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void printStats() {
+		System.out.println("\nVerification: "+checks+" checks ("+skipped+" skipped), "+
+				(drifts.get() > 0 ? drifts+" drifts" : "no drift found"));
+	}
+
+	@Override
+	public void run() {
+		long nextDue = System.nanoTime()+periodNs;
+		while(true) {
+			Snapshot s;
+			try {
+				if(periodNs > 0) {
+					long wait = nextDue-System.nanoTime();
+					if(wait <= 0) {
+						for(DistChain chain : chains)
+							chain.requestVerify();
+						nextDue += periodNs*(1-wait/periodNs);
+						continue;
+					}
+					s = queue.poll(wait, TimeUnit.NANOSECONDS);
+				} else {
+					s = queue.take();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(s == END)
+				return;
+			if(s != null)
+				verify(s);
+		}
+	}
+
+	private void verify(Snapshot s) {
+		try {
+			s.ali.checkCons();
+		} catch (Error e) {
+			drift(s.chain, s.step, s.move, e.getMessage(), false);
+			return;
+		}
+		int dist = distCalc.dist(s.ali);
+		if(dist != s.dist)
+			drift(s.chain, s.step, s.move, "tracked dist "+s.dist+", actual "+dist, true);
+		else
+			passed();
+	}
+}
@@ -0,0 +1,182 @@
+package base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A chain that learns the density of states g(d), i.e. the number of alignments at each
+ * distance d from the reference, within a band <code>[dmin, dmax]</code> by the Wang-Landau
+ * algorithm and samples alignments with probability proportional to 1/g(d) in the band.
+ *
+ * <p>While learning, each step adds the modification factor <code>f</code> to the estimate of
+ * log g at the current distance. When the histogram of distances visited since the last
+ * change is flat, <code>f</code> is halved, until it falls below a limit. After
+ * {@link #freeze()} the estimate is fixed, so the chain samples every distance of the band
+ * about equally often and alignments at the same distance uniformly. Outside the band the
+ * probability decays as for an ordinary chain targeting the nearest end of the band.
+ *
+ * @author novadam
+ */
+public class WangLandauChain extends DistChain {
+
+	private static final double FLATNESS = 0.8;		// min. ratio of the minimal and the mean histogram count
+	private static final int FLAT_CHECK = 1000;		// frequency of flatness checks in steps
+
+	private int dmin, dmax;
+	private double minF;			// modification factor at which learning is considered converged
+
+	private double[] logG;			// estimated log g(d) for d in the band
+	private long[] hist;			// visits at each distance since the last change of f
+	private double f;				// current modification factor of log g
+	private boolean learning;
+	private long steps;
+
+	public WangLandauChain(int id, Align ref, DistCalc distCalc, int dmin, int dmax, double heat, double minF) {
+		super(id, ref, distCalc, dmin, heat);
+		if(dmin < 0 || dmax < dmin)
+			throw new Error("Bad distance band: "+dmin+"-"+dmax);
+		this.dmin = dmin;
+		this.dmax = dmax;
+		this.minF = minF;
+		logG = new double[dmax-dmin+1];
+		hist = new long[logG.length];
+	}
+
+	@Override
+	public DistChain setKinetic(boolean kinetic) {
+		if(kinetic)
+			throw new Error("Rejection-free sampling is not supported with a changing target");
+		return this;
+	}
+
+	@Override
+	public void init() {
+		Arrays.fill(logG, 0);
+		Arrays.fill(hist, 0);
+		f = 1;
+		learning = true;
+		steps = 0;
+		super.init();
+	}
+
+	@Override
+	protected double logPi(int dist) {
+		if(dist < dmin)
+			return -logG[0]-(dmin-dist)*2/getHeat();
+		if(dist > dmax)
+			return -logG[logG.length-1]-(dist-dmax)*2/getHeat();
+		return -logG[dist-dmin];
+	}
+
+	@Override
+	protected void record(long cnt) {
+		super.record(cnt);
+		if(!learning)
+			return;
+		int d = getCurDist();
+		if(d >= dmin && d <= dmax) {
+			logG[d-dmin] += f*cnt;
+			hist[d-dmin] += cnt;
+			refreshPi();
+		}
+		if((steps += cnt) % FLAT_CHECK == 0 && isFlat()) {
+			f /= 2;
+			Arrays.fill(hist, 0);
+		}
+	}
+
+	/**
+	 * Takes a sample if the current distance is within the band.
+	 * @return false if the distance is out of the band
+	 */
+	@Override
+	public boolean sample() {
+		int d = getCurDist();
+		if(d < dmin || d > dmax)
+			return false;
+		return super.sample();
+	}
+
+	/**
+	 * Checks if the histogram is flat over the distances visited so far (some distances
+	 * of the band may be unreachable).
+	 */
+	private boolean isFlat() {
+		long min = Long.MAX_VALUE, sum = 0;
+		int n = 0;
+		for(int i = 0; i < hist.length; i++) {
+			if(logG[i] > 0) {
+				min = Math.min(min, hist[i]);
+				sum += hist[i];
+				n++;
+			}
+		}
+		return n > 0 && min > 0 && min >= FLATNESS*sum/n;
+	}
+
+	/**
+	 * Returns true if the modification factor has fallen below its limit.
+	 */
+	public boolean isConverged() {
+		return f < minF;
+	}
+
+	/**
+	 * Stops learning, fixing the estimate of the density of states.
+	 */
+	public void freeze() {
+		learning = false;
+	}
+
+	public double getModFactor() {
+		return f;
+	}
+
+	public int getMinDist() {
+		return dmin;
+	}
+
+	public int getMaxDist() {
+		return dmax;
+	}
+
+	/**
+	 * Returns the estimated log density of states at distance <code>dist</code> of the band,
+	 * relative to that at the lower end of the band (NaN if either has not been visited).
+	 */
+	public double getLogDos(int dist) {
+		if(logG[dist-dmin] == 0 || logG[0] == 0)
+			return Double.NaN;
+		return logG[dist-dmin]-logG[0];
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(dmin);
+		out.writeInt(dmax);
+		for(int i = 0; i < logG.length; i++) {
+			out.writeDouble(logG[i]);
+			out.writeLong(hist[i]);
+		}
+		out.writeDouble(f);
+		out.writeBoolean(learning);
+		out.writeLong(steps);
+		super.writeState(out);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		if(in.readInt() != dmin || in.readInt() != dmax)
+			throw new IOException("distance band mismatch");
+		for(int i = 0; i < logG.length; i++) {
+			logG[i] = in.readDouble();
+			hist[i] = in.readLong();
+		}
+		f = in.readDouble();
+		learning = in.readBoolean();
+		steps = in.readLong();
+		super.readState(in);
+	}
+}
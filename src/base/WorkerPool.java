@@ -0,0 +1,347 @@
+package base;
+
+import io.RawSequences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the chains of a {@link DistSampler} in local worker processes
+ * (<code>main.AlignDistWorker</code>), each with its own heap, talking over local sockets.
+ * Each worker runs a contiguous block of the chains, so that most neighbours of a
+ * temperature ladder are in the same process. All workers make their steps in parallel
+ * and report the distances of their chains only, from which the swaps are decided here.
+ * Alignments are transferred only when a swap between chains of different workers is
+ * accepted, and for the samples of the output chains.
+ *
+ * @author novadam
+ */
+public class WorkerPool {
+
+	private static final int ACCEPT_TIMEOUT = 60000;		// max. time to wait for the workers to connect in ms
+
+	private DistChain[] chains;			// chains of the sampler, holding the targets and heats
+	private Align ref;
+	private int nworker;
+	private Random rnd;					// for the seeds of the workers and the swaps
+	private int[] firsts;				// first chain of each worker (and the number of chains at the end)
+	private int[] owners;				// worker of each chain
+	private int[] dists;				// current distances of the chains
+
+	private Process[] procs;
+	private Socket[] sockets;
+	private DataInputStream[] ins;
+	private DataOutputStream[] outs;
+
+	// samples of the output chains
+	private int[] taken;
+	private DistCalc[] firstCalcs;
+
+	/**
+	 * Starts <code>nworker</code> worker processes and moves the chains to them. The chains
+	 * must be initialized; the ones kept here only serve for the targets and heats and
+	 * are not updated until {@link #collect()}.
+	 */
+	public WorkerPool(DistChain[] chains, Align ref, int nworker, Random rnd, boolean rejectNonExact,
+			boolean sketchStats, int realignLen, boolean gibbsChar, int multiTry, boolean kinetic) throws IOException {
+		if(nworker < 1 || nworker > chains.length)
+			throw new Error("Bad number of workers: "+nworker);
+		this.chains = chains;
+		this.ref = ref;
+		this.nworker = nworker;
+		this.rnd = rnd;
+		int nchain = chains.length, w, k;
+		firsts = new int[nworker+1];
+		owners = new int[nchain];
+		for(w = 0; w <= nworker; w++)
+			firsts[w] = w*nchain/nworker;
+		for(w = 0; w < nworker; w++)
+			for(k = firsts[w]; k < firsts[w+1]; k++)
+				owners[k] = w;
+		dists = new int[nchain];
+		for(k = 0; k < nchain; k++)
+			dists[k] = chains[k].getCurDist();
+		taken = new int[nchain];
+		firstCalcs = new DistCalc[nchain];
+
+		start();
+		RawSequences raw = ref.toRaw();
+		for(w = 0; w < nworker; w++) {
+			DataOutputStream out = outs[w];
+			out.writeByte(ChainWorker.CMD_INIT);
+			out.writeLong(rnd.nextLong());
+			out.writeInt(raw.size());
+			for(k = 0; k < raw.size(); k++) {
+				out.writeUTF(raw.getSeqName(k));
+				out.writeUTF(raw.getSequence(k));
+			}
+			out.writeBoolean(rejectNonExact);
+			out.writeBoolean(sketchStats);
+			out.writeInt(realignLen);
+			out.writeBoolean(gibbsChar);
+			out.writeInt(multiTry);
+			out.writeBoolean(kinetic);
+			out.writeInt(firsts[w]);
+			out.writeInt(firsts[w+1]-firsts[w]);
+			for(k = firsts[w]; k < firsts[w+1]; k++) {
+				out.writeInt(chains[k].getTargetDist());
+				String name = chains[k].getSampleName();
+				out.writeBoolean(name != null);
+				if(name != null)
+					out.writeUTF(name);
+				chains[k].writeState(out);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Launches the worker processes with the class path and heap/GC options of this JVM
+	 * and waits for them to connect.
+	 */
+	private void start() throws IOException {
+		procs = new Process[nworker];
+		sockets = new Socket[nworker];
+		ins = new DataInputStream[nworker];
+		outs = new DataOutputStream[nworker];
+		ServerSocket server = new ServerSocket(0, nworker, InetAddress.getByName("127.0.0.1"));
+		try {
+			server.setSoTimeout(ACCEPT_TIMEOUT);
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+			for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+				if(arg.startsWith("-X"))
+					cmd.add(arg);
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add("main.AlignDistWorker");
+			cmd.add(Integer.toString(server.getLocalPort()));
+			for(int w = 0; w < nworker; w++) {
+				cmd.add(Integer.toString(w));
+				procs[w] = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+				cmd.remove(cmd.size()-1);
+				pipe(procs[w].getInputStream());
+			}
+			for(int w = 0; w < nworker; w++) {
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				int id = in.readInt();
+				if(id < 0 || id >= nworker || sockets[id] != null)
+					throw new IOException("bad worker id "+id);
+				sockets[id] = s;
+				ins[id] = in;
+				outs[id] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			}
+		} catch (IOException e) {
+			destroy();
+			throw e;
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Copies the output of a worker to the standard output.
+	 */
+	private static void pipe(final InputStream in) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[4096];
+				int n;
+				try {
+					while((n = in.read(buf)) > 0)
+						System.out.write(buf, 0, n);
+					System.out.flush();
+				} catch (IOException e) {
+				}
+			}
+		}, "WorkerOutput");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Makes <code>n</code> steps in all chains, the workers running in parallel.
+	 */
+	public void makeSteps(int n) {
+		try {
+			for(int w = 0; w < nworker; w++) {
+				outs[w].writeByte(ChainWorker.CMD_STEPS);
+				outs[w].writeInt(n);
+				outs[w].flush();
+			}
+			for(int w = 0; w < nworker; w++)
+				for(int k = firsts[w]; k < firsts[w+1]; k++)
+					dists[k] = ins[w].readInt();
+		} catch (IOException e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Tries to swap the states of chains <code>a</code> and <code>b</code>, with the
+	 * acceptance probability of {@link DistChain#trySwapWith(DistChain)}.
+	 * @return true if the swap was accepted
+	 */
+	public boolean trySwap(int a, int b) {
+		DistChain ca = chains[a], cb = chains[b];
+		double m = ca.logPi(dists[b])+cb.logPi(dists[a])-ca.logPi(dists[a])-cb.logPi(dists[b]);
+		boolean acc = m >= 0 || rnd.nextDouble() < Math.exp(m);
+		try {
+			DataOutputStream out = outs[owners[a]];
+			out.writeByte(ChainWorker.CMD_SWAP);
+			out.writeInt(a);
+			out.writeInt(b);
+			out.writeBoolean(acc);
+			if(acc && owners[a] != owners[b]) {
+				// exchange the states through here
+				byte[] sa = getState(a), sb = getState(b);
+				setState(a, sb);
+				setState(b, sa);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw failed(e);
+		}
+		if(acc) {
+			int d = dists[a];
+			dists[a] = dists[b];
+			dists[b] = d;
+		}
+		return acc;
+	}
+
+	/**
+	 * Returns the distance and alignment state of a chain as written by the worker.
+	 */
+	private byte[] getState(int k) throws IOException {
+		int w = owners[k];
+		outs[w].writeByte(ChainWorker.CMD_GET);
+		outs[w].writeInt(k);
+		outs[w].flush();
+		byte[] state = new byte[ins[w].readInt()];
+		ins[w].readFully(state);
+		return state;
+	}
+
+	private void setState(int k, byte[] state) throws IOException {
+		DataOutputStream out = outs[owners[k]];
+		out.writeByte(ChainWorker.CMD_SET);
+		out.writeInt(k);
+		out.write(state);
+		out.flush();
+	}
+
+	/**
+	 * Takes a sample in each chain, passing the samples of the output chains to the writer
+	 * and the listener (either can be null).
+	 * @return false if the sample of the coldest chain of any target was rejected
+	 */
+	public boolean sample(int chainsPerTarget, SampleWriter writer, SampleListener listener) {
+		boolean succ = true;
+		try {
+			for(int w = 0; w < nworker; w++) {
+				outs[w].writeByte(ChainWorker.CMD_SAMPLE);
+				outs[w].flush();
+			}
+			for(int w = 0; w < nworker; w++) {
+				for(int k = firsts[w]; k < firsts[w+1]; k++) {
+					if(!ins[w].readBoolean()) {
+						if(k%chainsPerTarget == 0)
+							succ = false;
+						continue;
+					}
+					if(!chains[k].isOutput())
+						continue;
+					int dist = ins[w].readInt();
+					Align ali = new Align(ref);
+					ali.readState(ins[w]);
+					if(firstCalcs[k] == null)
+						firstCalcs[k] = new DistCalc(ali);
+					taken[k]++;
+					if(writer != null)
+						writer.add(chains[k].getSampleName(), taken[k], dist, ali, firstCalcs[k]);
+					if(listener != null)
+						listener.sampled(k, dist, ali);
+				}
+			}
+		} catch (IOException e) {
+			throw failed(e);
+		}
+		return succ;
+	}
+
+	/**
+	 * Reads back the complete states of the chains from the workers into the chains of
+	 * the sampler, e.g. for the statistics.
+	 */
+	public void collect() {
+		try {
+			for(int w = 0; w < nworker; w++) {
+				outs[w].writeByte(ChainWorker.CMD_STATE);
+				outs[w].flush();
+			}
+			for(int w = 0; w < nworker; w++) {
+				for(int k = firsts[w]; k < firsts[w+1]; k++) {
+					long time = ins[w].readLong();
+					chains[k].readState(ins[w]);
+					chains[k].setTraceTime(time);
+				}
+			}
+		} catch (IOException e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Stops the workers.
+	 */
+	public void close() {
+		try {
+			for(int w = 0; w < nworker; w++) {
+				outs[w].writeByte(ChainWorker.CMD_QUIT);
+				outs[w].flush();
+			}
+			for(int w = 0; w < nworker; w++) {
+				procs[w].waitFor();
+				sockets[w].close();
+			}
+		} catch (IOException e) {
+			throw failed(e);
+		} catch (InterruptedException e) {
+			destroy();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Error failed(IOException e) {
+		destroy();
+		return new Error("Worker process failed: "+e.getMessage(), e);
+	}
+
+	private void destroy() {
+		for(int w = 0; w < nworker; w++) {
+			if(procs[w] != null)
+				procs[w].destroy();
+			try {
+				if(sockets[w] != null)
+					sockets[w].close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.ThreadOutputStream;
+
+/**
+ * Runs many {@link AlignDistSample} jobs in one JVM, so that the JVM start-up and JIT
+ * warm-up are paid only once and the cores are kept busy while single jobs are in their
+ * serial phases. Jobs are taken from a shared queue by a fixed number of threads, each
+ * job with its own random number generator, output directory and standard output.
+ *
+ * @author novadam
+ */
+public class AlignDistBatch {
+
+	private static final String USAGE =
+		"AlignDistBatch "+AlignDistSample.VERSION+" (C) Adam Novak, 2012.\n\n" +
+		"Usage:\n  java -cp adsample.jar main.AlignDistBatch [-threads=N] jobs.txt\n\n" +
+		"Description:\n"+
+		"  Runs the sampling jobs listed in jobs.txt in parallel in one JVM. Each line\n" +
+		"  gives a job as\n\n" +
+		"    OUTDIR [AlignDistSample options] ref.fsa\n\n" +
+		"  Blank lines and lines starting with # are skipped. The samples and the\n" +
+		"  files given by relative paths in the options (-log, -hist, -ckpt) are\n" +
+		"  written into OUTDIR (created if needed), and the output of the job into\n" +
+		"  OUTDIR/out.txt. Jobs are started in the order listed, as threads become\n" +
+		"  free. A job without -s gets its own random seed.\n\n" +
+		"Options:\n" +
+		"  -threads=N\n" +
+		"     The number of jobs run at the same time\n" +
+		"     Default: the number of processors\n\n";
+
+	private static class Job implements Callable<Void> {
+		int line;
+		File dir;
+		String[] args;
+		ThreadOutputStream out;
+		long time;					// running time in ns
+
+		@Override
+		public Void call() throws IOException {
+			if(!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("cannot create directory "+dir);
+			OutputStream file = new BufferedOutputStream(new FileOutputStream(new File(dir, "out.txt")));
+			out.setTarget(file);
+			long start = System.nanoTime();
+			try {
+				AlignDistSample.run(args, dir);
+				time = System.nanoTime()-start;
+			} catch (AlignDistSample.BadArguments e) {
+				throw new Error(e.getMessage() != null ? e.getMessage() : "bad arguments");
+			} finally {
+				System.out.flush();
+				out.setTarget(null);
+				file.close();
+			}
+			return null;
+		}
+	}
+
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String jobFile = null;
+		for(String arg : args) {
+			if(arg.startsWith("-threads=")) {
+				try {
+					threads = Integer.parseInt(arg.substring(9));
+					if(threads < 1)
+						throw new NumberFormatException();
+				} catch (NumberFormatException e) {
+					error("bad format for option threads: "+arg.substring(9));
+				}
+			} else if(jobFile == null && !arg.startsWith("-")) {
+				jobFile = arg;
+			} else {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+		}
+		if(jobFile == null) {
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+
+		PrintStream stdout = System.out;
+		ThreadOutputStream out = new ThreadOutputStream(stdout);
+		List<Job> jobs = null;
+		try {
+			jobs = readJobs(jobFile, out);
+		} catch (IOException e) {
+			error("error reading job file: "+e.getMessage());
+		}
+		stdout.println("Running "+jobs.size()+" jobs on "+threads+" threads\n");
+
+		System.setOut(new PrintStream(out, true));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		for(Job job : jobs)
+			results.add(pool.submit(job));
+		pool.shutdown();
+
+		int failed = 0;
+		for(int k = 0; k < jobs.size(); k++) {
+			Job job = jobs.get(k);
+			String status;
+			try {
+				results.get(k).get();
+				status = "done ("+String.format(Locale.US, "%.1f", job.time/1e9)+" s)";
+			} catch (ExecutionException e) {
+				failed++;
+				Throwable cause = e.getCause();
+				status = "failed: "+(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+			} catch (InterruptedException e) {
+				failed++;
+				status = "interrupted";
+			}
+			stdout.println("Job "+(k+1)+" (line "+job.line+", "+job.dir+"): "+status);
+		}
+		stdout.println("\nJobs done: "+(jobs.size()-failed)+" failed: "+failed+" total time: "+
+				String.format(Locale.US, "%.1f", (System.nanoTime()-start)/1e9)+" s");
+		System.setOut(stdout);
+		System.exit(failed > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Reads the jobs from the job file.
+	 */
+	private static List<Job> readJobs(String jobFile, ThreadOutputStream out) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader r = new BufferedReader(new FileReader(jobFile));
+		try {
+			String line;
+			int n = 0;
+			while((line = r.readLine()) != null) {
+				n++;
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if(fields.length < 2)
+					throw new IOException("line "+n+": output directory and reference expected");
+				Job job = new Job();
+				job.line = n;
+				job.dir = new File(fields[0]);
+				job.args = new String[fields.length-1];
+				System.arraycopy(fields, 1, job.args, 0, job.args.length);
+				job.out = out;
+				jobs.add(job);
+			}
+		} finally {
+			r.close();
+		}
+		return jobs;
+	}
+
+	private static void error(String msg) {
+		System.out.println("AlignDistBatch: " + msg);
+		System.exit(1);
+	}
+}
@@ -5,9 +5,13 @@ import io.RawSequences;
 import io.SampleReader;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 
 import ml.options.OptionSet;
 import ml.options.Options;
@@ -23,7 +27,7 @@ public class AlignDistCalc {
 	
 	private static final String USAGE =
 		"AlignDistCalc "+VERSION+" (C) Adam Novak, 2012.\n\n" +
-		"Usage:\n  java -jar adcalc.jar ref.fsa/mpd/log test1.fsa/mpd/log [test2...]\n\n" +
+		"Usage:\n  java -jar adcalc.jar ref.fsa/mpd/log test1.fsa/mpd/log[.gz] [test2...]\n\n" +
 		"Description:\n"+
 		"  Calculates distances and accuracy (similarity) values between a reference\n" +
 		"  alignment and a set of test alignments. Outputs the two values separated by\n" +
@@ -32,7 +36,8 @@ public class AlignDistCalc {
 		"  and accuracy is between 0 and 1, defined as 1-dist/maxdist where maxdist\n" +
 		"  is (n-1)sum(len_i), with n denoting the number of sequences, len_i the\n" +
 		"  length of ith sequence. Accepts FASTA or StatAlign mpd/log files. In the\n" +
-		"  latter case all alignment samples are scored.\n\n"+
+		"  latter case all alignment samples are scored. Logs ending with .log.gz\n" +
+		"  are read as gzip compressed (as written by AlignDistSample -log).\n\n"+
 		"Options:\n" +
 		"  -s=N\n" +
 		"     Skips first N samples and reads next as reference (applicable when\n" +
@@ -79,8 +84,8 @@ public class AlignDistCalc {
 		try {
 			MpdReader mr = new MpdReader();
 			RawSequences raw;
-			if(refFile.endsWith(".log")) {
-				SampleReader sReader = new SampleReader(new FileReader(refFile));
+			if(isLog(refFile)) {
+				SampleReader sReader = new SampleReader(openLog(refFile));
 				raw = mr.read(sReader);
 				for(int i = 0; i < skip; i++) {
 					sReader.nextSample();
@@ -94,8 +99,8 @@ public class AlignDistCalc {
 
 			for(int i = 1; i < data.size(); i++) {
 				String input = data.get(i);
-				if(input.endsWith(".log")) {
-					SampleReader sReader = new SampleReader(new FileReader(input));
+				if(isLog(input)) {
+					SampleReader sReader = new SampleReader(openLog(input));
 					while(!sReader.isEof()) {
 						try {
 							Align al = new Align(mr.read(sReader));
@@ -116,6 +121,16 @@ public class AlignDistCalc {
 		
 	}
 	
+	private static boolean isLog(String file) {
+		return file.endsWith(".log") || file.endsWith(".log.gz");
+	}
+	
+	private static Reader openLog(String file) throws IOException {
+		if(file.endsWith(".gz"))
+			return new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+		return new FileReader(file);
+	}
+	
 	private static void error(String msg) {
 		System.out.println("AlignDist: " + msg);
 		System.exit(1);
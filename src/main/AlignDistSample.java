@@ -6,15 +6,17 @@ import io.RawSequences;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
 
 import ml.options.OptionSet;
 import ml.options.Options;
 import ml.options.Options.Multiplicity;
 import ml.options.Options.Separator;
+import utils.StateRandom;
 import utils.Utils;
 import base.Align;
+import base.DistCalc;
 import base.DistSampler;
+import base.PairSampler;
 
 
 public class AlignDistSample {
@@ -24,6 +26,8 @@ public class AlignDistSample {
 	private static final int DEFAULT_CHAINS = 10;
 	private static final String DEFAULT_PARS = "10k,10,100k";
 	private static final String DEFAULT_TUNE = "0.7,20,10k";
+	private static final double DEFAULT_WL_MINF = 1e-4;
+	private static final double DEFAULT_METRICS_SECS = 5;
 	
 	private static final String USAGE =
 		"AlignDistSample "+VERSION+" (C) Adam Novak, 2012.\n\n" +
@@ -35,12 +39,15 @@ public class AlignDistSample {
 		"  -d=DIST\n" +
 		"     The distance at which to sample alignments, as defined by:\n" +
 		"       Schwartz et al. (2005) Alignment Metric Accuracy, arXiv:q-bio/0510052\n" +
-		"     Either -d or -a must be specified\n\n"+
+		"     A comma separated list of distances samples at all of them in one run,\n" +
+		"     with states swapped between the chains of neighbouring distances\n" +
+		"     (samples are written to dD_N.fsa). Either -d or -a must be specified\n\n"+
 		"  -a=AGR\n"+
 		"     The distance given as agreement (similarity) to the reference (value\n" +
-		"     between 0 and 1). Either -d or -a must be specified\n\n"+
+		"     between 0 and 1), or a list of them as for -d. Either -d or -a must be\n" +
+		"     specified (unless -wl is given)\n\n"+
 		"  -c=NC\n"+
-		"     The number of parallel chains to run\n"+
+		"     The number of parallel chains to run (per target distance)\n"+
 		"     Default: "+DEFAULT_CHAINS+"\n\n"+
 		"  -p=BURN,SAMP,RATE\n"+
 		"     MCMC parameters (burn-in steps, number of samples, sampling rate)\n"+
@@ -50,13 +57,131 @@ public class AlignDistSample {
 		"       TACC: target acceptance rate\n" +
 		"       CYC: total tuning cycles per chain (disabling if zero)\n"+
 		"       FREQ: tuning cycle frequency in steps\n" +
-		"     Tuning process requires NC*CYC*FREQ steps in total\n" +
+		"     Tuning process requires NC*CYC*FREQ steps in total (no tuning with -wl)\n" +
 		"     Default: "+DEFAULT_TUNE+"\n\n" +
 		"  -s=SEED\n" +
 		"     Set random seed for reproducible output\n" +
-		"     Default: based on current system time\n\n";
+		"     Default: based on current system time\n\n" +
+		"  -m\n" +
+		"     Use bounded-memory statistics: the number of distinct alignments seen\n" +
+		"     and the deviation from uniformity are estimated with fixed-size sketches\n" +
+		"     (with error bounds reported) instead of storing every sample\n\n" +
+		"  -log=FILE\n" +
+		"     Write all samples into FILE as a StatAlign style log (gzip compressed\n" +
+		"     if FILE ends with .gz), readable by AlignDistCalc, instead of a FASTA\n" +
+		"     file per sample. Samples are written on a background thread\n\n" +
+		"  -hist=FILE\n" +
+		"     Write the per-chain histograms of distances visited and of distinct\n" +
+		"     alignments sampled to FILE (binary if FILE ends with .bin, otherwise\n" +
+		"     tab separated values). With -m the distinct alignments are estimates,\n" +
+		"     given with their standard error in the tab separated form\n\n" +
+		"  -win=LEN\n" +
+		"     Enable the window realignment move, which resamples the gap placement\n" +
+		"     within a random window of LEN columns (in addition to the single\n" +
+		"     character moves)\n\n" +
+		"  -gibbs\n" +
+		"     Enable the Gibbs character move, which moves a character to any position\n" +
+		"     within its gap run, drawn from the conditional distribution\n\n" +
+		"  -adapt\n" +
+		"     Adapt the probabilities of choosing each move during burn-in to their\n" +
+		"     accepted distance change per CPU time (fixed during sampling)\n\n" +
+		"  -mtm=K\n" +
+		"     Use multiple-try Metropolis in the character slide move: K proposals\n" +
+		"     are evaluated per step and one is chosen by its likelihood, reducing\n" +
+		"     rejections at low heats at the cost of K times more evaluations\n\n" +
+		"  -kmc\n" +
+		"     Use rejection-free (n-fold way) sampling: all possible character moves\n" +
+		"     are tracked and the time spent in each alignment is drawn directly,\n" +
+		"     so runs are not slowed down by low acceptance rates (cannot be combined\n" +
+		"     with -win, -gibbs, -adapt and -mtm)\n\n" +
+		"  -ess=N\n" +
+		"     Sample until the effective sample size of the first chain reaches N\n" +
+		"     instead of taking SAMP samples: burn-in ends when the distance trace\n" +
+		"     has converged (BURN is an upper limit, 0 for none) and samples are\n" +
+		"     thinned by the measured autocorrelation time (RATE is the initial rate)\n\n" +
+		"  -time=SECS\n" +
+		"     Take as many samples as fit into SECS seconds, with burn-in and\n" +
+		"     thinning determined as for -ess (burn-in uses at most half the time)\n\n" +
+		"  -ckpt=FILE,MIN\n" +
+		"     Write a checkpoint of the run to FILE every MIN minutes (during burn-in\n" +
+		"     and sampling)\n\n" +
+		"  -wl=DMIN,DMAX[,FMIN]\n" +
+		"     Sample over the band of distances DMIN..DMAX instead of at a single\n" +
+		"     distance: the density of states is learnt during burn-in by the\n" +
+		"     Wang-Landau algorithm until the modification factor falls below FMIN\n" +
+		"     (BURN limits the steps if positive), then all distances of the band are\n" +
+		"     sampled about equally often. The learnt log density of states is\n" +
+		"     printed with the statistics. Default FMIN: "+DEFAULT_WL_MINF+"\n\n" +
+		"  -init\n" +
+		"     Before burn-in, walk the chains greedily from the reference to the\n" +
+		"     target distance, so that a much shorter burn-in suffices\n\n" +
+		"  -couple=PAIRS[,LAG]\n" +
+		"     Set the burn-in length by coupled chains: PAIRS pairs of chains, one\n" +
+		"     of them LAG steps ahead (default 1), are run from the reference with\n" +
+		"     common random numbers on two threads until they meet, and the burn-in\n" +
+		"     is set to the steps after which the estimated bound on the distance\n" +
+		"     from equilibrium (total variation) is 0.01. BURN limits the steps of\n" +
+		"     the pairs and is kept if some pair does not meet. The pairs are run at\n" +
+		"     heat 1 at the largest target distance, and the burn-in found is used\n" +
+		"     for all targets and heats\n\n" +
+		"  -workers=N\n" +
+		"     Run the chains in N local worker processes (N at most the number of\n" +
+		"     chains; each with its own heap, started with the heap/GC options of\n" +
+		"     this JVM), connected by local sockets. Swaps are attempted at most\n" +
+		"     every 100 steps and only accepted swaps between processes transfer\n" +
+		"     alignments (cannot be combined with -ckpt, -wl, -ess, -time and -adapt)\n\n" +
+		"  -verify=N|Ts\n" +
+		"     Verify the incrementally tracked state of the chains every N steps or\n" +
+		"     every T seconds (e.g. -verify=100k or -verify=10s): the alignment and its\n" +
+		"     distance are checked from scratch on a copy on a background thread, and\n" +
+		"     drifts are reported with the move made before (cannot be combined with\n" +
+		"     -workers)\n\n" +
+		"  -metrics=FILE[,SECS]\n" +
+		"     Write live metrics of the chains to FILE as JSON lines every SECS\n" +
+		"     seconds: steps per second, distance, heat and move acceptance rates of\n" +
+		"     each chain, and time histograms of the moves and swaps (cannot be\n" +
+		"     combined with -workers). Default SECS: "+(int)DEFAULT_METRICS_SECS+"\n\n" +
+		"  -jfr\n" +
+		"     Emit Java Flight Recorder events (JDK 11 or later): adsample.Phase for\n" +
+		"     tuning cycles, burn-in, sampling and checkpoints, adsample.Swap for\n" +
+		"     swap attempts and adsample.Sample for samples (not with -workers).\n" +
+		"     The events are disabled by default and have to be enabled in the\n" +
+		"     settings of the recording\n\n" +
+		"  -resume\n" +
+		"     Resume the run from the checkpoint given by -ckpt. All other options\n" +
+		"     must be the same as for the checkpointed run\n\n" +
+		"  -mcmc\n" +
+		"     Use MCMC for a reference of two sequences as well. By default, pairwise\n" +
+		"     alignments are sampled exactly uniformly by dynamic programming (taking\n" +
+		"     SAMP independent samples; BURN, RATE and the MCMC options are ignored)\n\n";
+
+	/**
+	 * Thrown for bad command line arguments (without a message if the usage should be printed).
+	 */
+	public static class BadArguments extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public BadArguments(String msg) {
+			super(msg);
+		}
+	}
 
 	public static void main(String[] args) {
+		try {
+			run(args, null);
+		} catch (BadArguments e) {
+			System.out.println(e.getMessage() != null ? "AlignDistSample: "+e.getMessage() : USAGE);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs a sampling job given by its command line arguments.
+	 * @param dir directory of the sample files and of the output files given by relative
+	 *   paths (null: current directory)
+	 * @throws BadArguments if the arguments are bad
+	 */
+	public static void run(String[] args, File dir) {
 		Options opt = new Options(args, Multiplicity.ZERO_OR_ONE, 1, 1);
 		opt.addSet("run")
 				.addOption("d", Separator.EQUALS)
@@ -64,13 +189,31 @@ public class AlignDistSample {
 				.addOption("c", Separator.EQUALS)
 				.addOption("p", Separator.EQUALS)
 				.addOption("t", Separator.EQUALS)
-				.addOption("s", Separator.EQUALS);
+				.addOption("s", Separator.EQUALS)
+				.addOption("m")
+				.addOption("log", Separator.EQUALS)
+				.addOption("hist", Separator.EQUALS)
+				.addOption("win", Separator.EQUALS)
+				.addOption("gibbs")
+				.addOption("adapt")
+				.addOption("mtm", Separator.EQUALS)
+				.addOption("kmc")
+				.addOption("ess", Separator.EQUALS)
+				.addOption("time", Separator.EQUALS)
+				.addOption("ckpt", Separator.EQUALS)
+				.addOption("resume")
+				.addOption("wl", Separator.EQUALS)
+				.addOption("init")
+				.addOption("couple", Separator.EQUALS)
+				.addOption("mcmc")
+				.addOption("workers", Separator.EQUALS)
+				.addOption("verify", Separator.EQUALS)
+				.addOption("metrics", Separator.EQUALS)
+				.addOption("jfr");
 		
 		OptionSet set = null;
-		if((set = opt.getMatchingSet(false, false)) == null) {
-			System.out.println(USAGE);
-			System.exit(1);
-		}
+		if((set = opt.getMatchingSet(false, false)) == null)
+			error(null);
 
 		ArrayList<String> data = set.getData();
 		String refFile = data.get(0);
@@ -103,16 +246,40 @@ public class AlignDistSample {
 		}
 		
 		DistSampler sampler = null;
-		if(!set.isSet("d") && !set.isSet("a")) {
+		if(set.isSet("wl")) {
+			if(set.isSet("d") || set.isSet("a"))
+				error("option wl cannot be combined with d or a.");
+			String val = set.getOption("wl").getResultValue(0);
+			String[] vals = val.split(",");
+			try {
+				if(vals.length < 2 || vals.length > 3)
+					throw new NumberFormatException();
+				int dmin = Integer.parseInt(vals[0]), dmax = Integer.parseInt(vals[1]);
+				double minF = vals.length > 2 ? Double.parseDouble(vals[2]) : DEFAULT_WL_MINF;
+				if(dmin < 0 || dmax < dmin || minF <= 0)
+					throw new NumberFormatException();
+				sampler = new DistSampler(ref, dmin, chains);
+				sampler.setFlatHist(dmin, dmax, minF);
+			} catch (NumberFormatException e) {
+				error("bad format for option wl: "+val);
+			}
+		} else if(!set.isSet("d") && !set.isSet("a")) {
 			error("either -d or -a must be given.");
 		}
 		if(set.isSet("d")) {
 			String val = set.getOption("d").getResultValue(0);
 			try {
-				int dist = Integer.parseInt(val);
-				if(dist < 0)
-					throw new NumberFormatException();
-				sampler = new DistSampler(ref, dist, chains);
+				String[] vals = val.split(",");
+				int[] dists = new int[vals.length];
+				for(int i = 0; i < vals.length; i++) {
+					dists[i] = Integer.parseInt(vals[i]);
+					if(dists[i] < 0)
+						throw new NumberFormatException();
+				}
+				int dup = duplicate(dists);
+				if(dup >= 0)
+					error("duplicate target distance in option d: "+dup);
+				sampler = new DistSampler(ref, dists, chains);
 			} catch (NumberFormatException e) {
 				error("bad format for option d: "+val);
 			}
@@ -120,10 +287,19 @@ public class AlignDistSample {
 		if(set.isSet("a")) {
 			String val = set.getOption("a").getResultValue(0);
 			try {
-				double agree = Double.parseDouble(val);
-				if(agree < 0 || agree > 1)
-					throw new NumberFormatException();
-				sampler = new DistSampler(ref, agree, chains);
+				String[] vals = val.split(",");
+				DistCalc calc = new DistCalc(ref);
+				int[] dists = new int[vals.length];
+				for(int i = 0; i < vals.length; i++) {
+					double agree = Double.parseDouble(vals[i]);
+					if(agree < 0 || agree > 1)
+						throw new NumberFormatException();
+					dists[i] = calc.acc2dist(agree);
+				}
+				int dup = duplicate(dists);
+				if(dup >= 0)
+					error("agreements in option a give the same target distance: "+dup);
+				sampler = new DistSampler(ref, dists, chains);
 			} catch (NumberFormatException e) {
 				error("bad format for option a: "+val);
 			}
@@ -166,24 +342,209 @@ public class AlignDistSample {
 			error("bad format for option t: "+tune);
 		}
 		
+		StateRandom rnd = new StateRandom();
 		if(set.isSet("s")) {
 			String seedStr = set.getOption("s").getResultValue(0);
 			try {
 				int seed = Integer.parseInt(seedStr);
 				// fix seed
-				Utils.generator = new Random(seed);
+				rnd = new StateRandom(seed);
 			} catch (NumberFormatException e) {
 				error("bad format for option s: "+seedStr);
 			}
 		}
 
+		sampler.setRandom(rnd);
+		sampler.setOutputDir(dir);
+		sampler.setSketchStats(set.isSet("m"));
+		String log = set.isSet("log") ? path(dir, set.getOption("log").getResultValue(0)) : null;
+		sampler.setSampleLog(log);
+		if(set.isSet("hist"))
+			sampler.setHistFile(path(dir, set.getOption("hist").getResultValue(0)));
+		if(set.isSet("win")) {
+			String val = set.getOption("win").getResultValue(0);
+			try {
+				int len = Integer.parseInt(val);
+				if(len < 2)
+					throw new NumberFormatException();
+				sampler.setRealignWin(len);
+			} catch (NumberFormatException e) {
+				error("bad format for option win: "+val);
+			}
+		}
+		
+		sampler.setJfrEvents(set.isSet("jfr"));
+		sampler.setGibbsChar(set.isSet("gibbs"));
+		sampler.setAdaptMoves(set.isSet("adapt"));
+		if(set.isSet("mtm")) {
+			String val = set.getOption("mtm").getResultValue(0);
+			try {
+				int k = Integer.parseInt(val);
+				if(k < 1)
+					throw new NumberFormatException();
+				sampler.setMultiTry(k);
+			} catch (NumberFormatException e) {
+				error("bad format for option mtm: "+val);
+			}
+		}
+		if(set.isSet("kmc")) {
+			if(set.isSet("win") || set.isSet("gibbs") || set.isSet("adapt") || set.isSet("mtm"))
+				error("option kmc cannot be combined with win, gibbs, adapt or mtm.");
+			sampler.setKinetic(true);
+		}
+		
+		if(set.isSet("wl") && (set.isSet("kmc") || set.isSet("ess") || set.isSet("time") || set.isSet("init")))
+			error("option wl cannot be combined with kmc, ess, time or init.");
+		sampler.setQuickInit(set.isSet("init"));
+		if(set.isSet("couple")) {
+			if(set.isSet("ess") || set.isSet("time") || set.isSet("wl"))
+				error("option couple cannot be combined with ess, time or wl.");
+			String val = set.getOption("couple").getResultValue(0);
+			String[] vals = val.split(",");
+			try {
+				if(vals.length > 2)
+					throw new NumberFormatException();
+				int pairs = Integer.parseInt(vals[0]), lag = vals.length > 1 ? Integer.parseInt(vals[1]) : 1;
+				if(pairs < 1 || lag < 1)
+					throw new NumberFormatException();
+				sampler.setCoupling(pairs, lag);
+			} catch (NumberFormatException e) {
+				error("bad format for option couple: "+val);
+			}
+		}
+		if(set.isSet("workers")) {
+			if(set.isSet("ckpt") || set.isSet("wl") || set.isSet("ess") || set.isSet("time") || set.isSet("adapt") ||
+					set.isSet("verify") || set.isSet("metrics"))
+				error("option workers cannot be combined with ckpt, wl, ess, time, adapt, verify or metrics.");
+			String val = set.getOption("workers").getResultValue(0);
+			try {
+				int n = Integer.parseInt(val);
+				if(n < 1)
+					throw new NumberFormatException();
+				int total = chains*sampler.getTargetDists().length;
+				if(n > total)
+					error("option workers cannot exceed the number of chains ("+total+").");
+				sampler.setWorkers(n);
+			} catch (NumberFormatException e) {
+				error("bad format for option workers: "+val);
+			}
+		}
+		if(set.isSet("verify")) {
+			String val = set.getOption("verify").getResultValue(0);
+			try {
+				if(val.endsWith("s")) {
+					double secs = Double.parseDouble(val.substring(0, val.length()-1));
+					if(secs <= 0)
+						throw new NumberFormatException();
+					sampler.setVerify(0, secs);
+				} else {
+					int steps = Utils.parseValue(val);
+					if(steps < 1)
+						throw new NumberFormatException();
+					sampler.setVerify(steps, 0);
+				}
+			} catch (NumberFormatException e) {
+				error("bad format for option verify: "+val);
+			}
+		}
+		if(set.isSet("metrics")) {
+			String val = set.getOption("metrics").getResultValue(0);
+			arr = val.split(",");
+			try {
+				if(arr.length > 2 || arr[0].length() == 0)
+					throw new NumberFormatException();
+				double secs = arr.length > 1 ? Double.parseDouble(arr[1]) : DEFAULT_METRICS_SECS;
+				if(secs <= 0)
+					throw new NumberFormatException();
+				sampler.setMetrics(path(dir, arr[0]), secs);
+			} catch (NumberFormatException e) {
+				error("bad format for option metrics: "+val);
+			}
+		}
+		if(set.isSet("ess") && set.isSet("time"))
+			error("options ess and time cannot be combined.");
+		if(set.isSet("ess")) {
+			String val = set.getOption("ess").getResultValue(0);
+			try {
+				int ess = Utils.parseValue(val);
+				if(ess < 1)
+					throw new NumberFormatException();
+				sampler.setStopEss(ess);
+			} catch (NumberFormatException e) {
+				error("bad format for option ess: "+val);
+			}
+		}
+		if(set.isSet("time")) {
+			String val = set.getOption("time").getResultValue(0);
+			try {
+				double secs = Double.parseDouble(val);
+				if(secs <= 0)
+					throw new NumberFormatException();
+				sampler.setTimeBudget(secs);
+			} catch (NumberFormatException e) {
+				error("bad format for option time: "+val);
+			}
+		}
+		
+		if(set.isSet("ckpt")) {
+			String val = set.getOption("ckpt").getResultValue(0);
+			arr = val.split(",");
+			try {
+				if(arr.length != 2)
+					throw new NumberFormatException();
+				double min = Double.parseDouble(arr[1]);
+				if(min <= 0)
+					throw new NumberFormatException();
+				sampler.setCheckpoint(path(dir, arr[0]), min);
+			} catch (NumberFormatException e) {
+				error("bad format for option ckpt: "+val);
+			}
+		}
+		if(set.isSet("resume")) {
+			if(!set.isSet("ckpt"))
+				error("option resume requires ckpt.");
+			if(!new File(path(dir, set.getOption("ckpt").getResultValue(0).split(",")[0])).exists())
+				error("checkpoint file does not exist.");
+			sampler.setResume(true);
+		}
+		
+		if(ref.names.length == 2 && !set.isSet("mcmc") && !set.isSet("wl")) {
+			int[] dists = sampler.getTargetDists();
+			PairSampler pair = new PairSampler(ref);
+			pair.setRandom(rnd);
+			pair.setOutputDir(dir);
+			if(pair.prepare(dists[dists.length-1])) {
+				pair.run(dists, samp, log);
+				return;
+			}
+			System.out.println("Pairwise reference too long for exact sampling, using MCMC\n");
+		}
 		sampler.enableTempTune(tacc, tcyc, tfreq);
 		sampler.run(burn, samp, rate);
 	}
 	
 	private static void error(String msg) {
-		System.out.println("AlignDistSample: " + msg);
-		System.exit(1);
+		throw new BadArguments(msg);
+	}
+	
+	/**
+	 * Returns a distance occurring more than once in <code>dists</code> (-1 if none).
+	 */
+	private static int duplicate(int[] dists) {
+		for(int i = 0; i < dists.length; i++)
+			for(int j = 0; j < i; j++)
+				if(dists[i] == dists[j])
+					return dists[i];
+		return -1;
+	}
+	
+	/**
+	 * Resolves a relative output file name against the output directory.
+	 */
+	private static String path(File dir, String file) {
+		if(dir == null || new File(file).isAbsolute())
+			return file;
+		return new File(dir, file).getPath();
 	}
 	
 }
@@ -0,0 +1,36 @@
+package main;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import base.ChainWorker;
+
+/**
+ * Worker process of a {@link base.WorkerPool}, started by the sampler with the port to
+ * connect to and the index of the worker.
+ *
+ * @author novadam
+ */
+public class AlignDistWorker {
+
+	public static void main(String[] args) {
+		if(args.length != 2) {
+			System.out.println("AlignDistWorker: started by AlignDistSample -workers, not to be run directly");
+			System.exit(1);
+		}
+		try {
+			Socket s = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(args[0]));
+			s.setTcpNoDelay(true);
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeInt(Integer.parseInt(args[1]));
+			out.flush();
+			new ChainWorker(s.getInputStream(), s.getOutputStream()).run();
+			s.close();
+		} catch (IOException e) {
+			System.out.println("AlignDistWorker "+args[1]+": "+e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Online estimation of the integrated autocorrelation time of a trace (e.g. the distance
+ * of an MCMC chain at each step) in constant memory, using batch means: the trace is split
+ * into consecutive batches of equal length and the autocorrelation time is estimated as
+ * <code>len*var(batch means)/var(values)</code>. When the fixed number of batches is filled,
+ * neighbouring batches are merged, doubling the batch length, so batches stay long compared
+ * to the autocorrelation time as the trace grows.
+ *
+ * @author novadam
+ */
+public class AutoCorr {
+
+	private double[] sums;		// sums of the values in the full batches
+	private int nfull;			// number of full batches
+	private long batchLen = 1;
+	private long curLen;		// number of values in the batch being filled
+	private double curSum;
+
+	private long n;				// number of values
+	private double avg;
+	private double dsqSum;		// = sum^n{(x_i-avg)^2}
+
+	/**
+	 * @param batches maximal number of batches (even, at least 4)
+	 */
+	public AutoCorr(int batches) {
+		if(batches < 4 || batches%2 != 0)
+			throw new Error("Bad number of batches: "+batches);
+		sums = new double[batches];
+	}
+
+	public void add(double value) {
+		add(value, 1);
+	}
+
+	/**
+	 * Adds <code>value</code> to the trace <code>cnt</code> times.
+	 */
+	public void add(double value, long cnt) {
+		if(cnt <= 0)
+			return;
+		double d = value-avg;
+		long n2 = n+cnt;
+		avg += d*cnt/n2;
+		dsqSum += d*d*n*cnt/n2;
+		n = n2;
+
+		while(cnt > 0) {
+			long m = Math.min(cnt, batchLen-curLen);
+			curSum += value*m;
+			curLen += m;
+			cnt -= m;
+			if(curLen == batchLen) {
+				sums[nfull++] = curSum;
+				curSum = 0;
+				curLen = 0;
+				if(nfull == sums.length) {
+					// merge neighbouring batches
+					for(int i = 0; i < nfull/2; i++)
+						sums[i] = sums[2*i]+sums[2*i+1];
+					nfull /= 2;
+					batchLen *= 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of values in the trace.
+	 */
+	public long getCount() {
+		return n;
+	}
+
+	public double getMean() {
+		return avg;
+	}
+
+	/**
+	 * Returns the standard error of the mean estimated from the batch means, which takes
+	 * the autocorrelation into account (NaN if there are too few values).
+	 */
+	public double getMeanErr() {
+		if(nfull < 2)
+			return Double.NaN;
+		double bavg = 0;
+		for(int i = 0; i < nfull; i++)
+			bavg += sums[i];
+		bavg /= nfull*(double)batchLen;
+		double bdsq = 0;
+		for(int i = 0; i < nfull; i++) {
+			double d = sums[i]/batchLen-bavg;
+			bdsq += d*d;
+		}
+		return Math.sqrt(bdsq/(nfull-1)/nfull);
+	}
+
+	/**
+	 * Returns the current batch length, which should be well above the autocorrelation
+	 * time for a reliable estimate.
+	 */
+	public long getBatchLen() {
+		return batchLen;
+	}
+
+	/**
+	 * Returns the estimated integrated autocorrelation time in number of values, or NaN
+	 * if there are too few values or the trace is constant.
+	 */
+	public double getIat() {
+		if(nfull < 2 || dsqSum <= 0)
+			return Double.NaN;
+		double err = getMeanErr();
+		return nfull*batchLen*err*err/(dsqSum/n);
+	}
+
+	/**
+	 * Returns the effective sample size of the trace, i.e. the number of values divided
+	 * by the autocorrelation time (NaN if the latter is not available).
+	 */
+	public double getEss() {
+		return n/getIat();
+	}
+
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(sums.length);
+		out.writeInt(nfull);
+		for(int i = 0; i < nfull; i++)
+			out.writeDouble(sums[i]);
+		out.writeLong(batchLen);
+		out.writeLong(curLen);
+		out.writeDouble(curSum);
+		out.writeLong(n);
+		out.writeDouble(avg);
+		out.writeDouble(dsqSum);
+	}
+
+	/**
+	 * Restores a state written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		if(in.readInt() != sums.length)
+			throw new IOException("Number of batches mismatch");
+		nfull = in.readInt();
+		for(int i = 0; i < nfull; i++)
+			sums[i] = in.readDouble();
+		batchLen = in.readLong();
+		curLen = in.readLong();
+		curSum = in.readDouble();
+		n = in.readLong();
+		avg = in.readDouble();
+		dsqSum = in.readDouble();
+	}
+
+	public void reset() {
+		nfull = 0;
+		batchLen = 1;
+		curLen = 0;
+		curSum = 0;
+		n = 0;
+		avg = 0;
+		dsqSum = 0;
+	}
+}
@@ -0,0 +1,94 @@
+package utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes data to files on a background thread, so that the caller only pays for
+ * preparing the data in memory. Only the latest data submitted is kept if the thread
+ * is still busy with an earlier write. Files are written to a temporary file first
+ * and then renamed, so an interrupted write does not destroy the previous file.
+ *
+ * @author novadam
+ */
+public class BackgroundWriter implements Runnable {
+
+	private Thread thread;
+	private String pendingFile;
+	private byte[] pendingData;
+	private boolean closed = false;
+
+	public BackgroundWriter() {
+		thread = new Thread(this, "BackgroundWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules <code>data</code> to be written to <code>file</code>, replacing any
+	 * write not yet started.
+	 */
+	public synchronized void write(String file, byte[] data) {
+		if(closed)
+			throw new Error("Writer is closed");
+		pendingFile = file;
+		pendingData = data;
+		notifyAll();
+	}
+
+	/**
+	 * Finishes pending writes and stops the background thread.
+	 */
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			String file;
+			byte[] data;
+			synchronized(this) {
+				while(pendingData == null && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(pendingData == null)
+					return;
+				file = pendingFile;
+				data = pendingData;
+				pendingData = null;
+			}
+			try {
+				writeFile(file, data);
+			} catch (IOException e) {
+				System.out.println("Error writing "+file+": "+e.getMessage());
+			}
+		}
+	}
+
+	private static void writeFile(String file, byte[] data) throws IOException {
+		File tmp = new File(file+".tmp"), dest = new File(file);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(dest) && !(dest.delete() && tmp.renameTo(dest)))
+			throw new IOException("cannot rename "+tmp+" to "+dest);
+	}
+}
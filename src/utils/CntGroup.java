@@ -1,6 +1,9 @@
 package utils;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -42,6 +45,24 @@ public class CntGroup {
 			counter.reset();
 	}
 	
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(cnt);
+		out.writeInt(list.size());
+		for(Counter counter : list)
+			out.writeInt(counter.cnt);
+	}
+	
+	/**
+	 * Restores the counts written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		cnt = in.readInt();
+		if(in.readInt() != list.size())
+			throw new IOException("Counter group "+name+" mismatch");
+		for(Counter counter : list)
+			counter.cnt = in.readInt();
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
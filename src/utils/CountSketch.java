@@ -0,0 +1,126 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Count sketch of item frequencies using a fixed amount of memory. Provides
+ * frequency estimates of individual items and an estimate of the second frequency
+ * moment (the sum of squared frequencies). Items must be supplied as well-mixed
+ * 64-bit hash values.
+ * 
+ * <p>Charikar et al. (2002) Finding frequent items in data streams.
+ * 
+ * @author novadam
+ */
+public class CountSketch {
+	
+	private int[][] table;		// depth x width signed counters
+	private int mask;
+	private double[] work;
+	
+	/**
+	 * @param depth number of independent rows (estimates are medians over the rows)
+	 * @param logWidth base 2 logarithm of the number of counters in each row
+	 */
+	public CountSketch(int depth, int logWidth) {
+		table = new int[depth][1 << logWidth];
+		mask = (1 << logWidth)-1;
+		work = new double[depth];
+	}
+	
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(table.length);
+		out.writeInt(mask);
+		for(int[] row : table)
+			for(int v : row)
+				out.writeInt(v);
+	}
+	
+	/**
+	 * Restores a state written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		if(in.readInt() != table.length || in.readInt() != mask)
+			throw new IOException("Count sketch size mismatch");
+		for(int[] row : table)
+			for(int i = 0; i < row.length; i++)
+				row[i] = in.readInt();
+	}
+	
+	private static long rowHash(long hash, int row) {
+		long x = hash+(row+1)*0x9E3779B97F4A7C15L;
+		x ^= x >>> 33;
+		x *= 0xFF51AFD7ED558CCDL;
+		x ^= x >>> 33;
+		return x;
+	}
+	
+	/**
+	 * Increments the frequency of an item.
+	 * @return the updated frequency estimate of the item
+	 */
+	public int inc(long hash) {
+		for(int r = 0; r < table.length; r++) {
+			long h = rowHash(hash, r);
+			int v = table[r][(int)h & mask] += h < 0 ? -1 : 1;
+			work[r] = h < 0 ? -v : v;
+		}
+		return (int)Math.round(median(work));
+	}
+	
+	/**
+	 * Returns the estimated frequency of an item.
+	 */
+	public int estimate(long hash) {
+		for(int r = 0; r < table.length; r++) {
+			long h = rowHash(hash, r);
+			int v = table[r][(int)h & mask];
+			work[r] = h < 0 ? -v : v;
+		}
+		return (int)Math.round(median(work));
+	}
+	
+	/**
+	 * Returns the estimated sum of squared item frequencies.
+	 */
+	public double estimateF2() {
+		for(int r = 0; r < table.length; r++) {
+			double s = 0;
+			int[] row = table[r];
+			for(int i = 0; i < row.length; i++)
+				s += (double)row[i]*row[i];
+			work[r] = s;
+		}
+		return median(work);
+	}
+	
+	/**
+	 * Returns the relative standard error of {@link #estimateF2()} (for a single row,
+	 * the median is more accurate).
+	 */
+	public double getF2RelError() {
+		return Math.sqrt(2.0/table[0].length);
+	}
+	
+	/**
+	 * Returns the typical absolute error of frequency estimates given the second
+	 * frequency moment <code>f2</code>.
+	 */
+	public double getFreqError(double f2) {
+		return Math.sqrt(f2/table[0].length);
+	}
+	
+	public void reset() {
+		for(int[] row : table)
+			Arrays.fill(row, 0);
+	}
+	
+	private static double median(double[] v) {
+		Arrays.sort(v);
+		int n = v.length;
+		return n%2 == 1 ? v[n/2] : (v[n/2-1]+v[n/2])/2;
+	}
+}
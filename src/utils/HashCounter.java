@@ -0,0 +1,137 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Counts occurrences of 128-bit hash keys. Implemented as an open addressing
+ * hash table on primitive arrays, so no objects are created per key.
+ * 
+ * @author novadam
+ */
+public class HashCounter {
+	
+	private long[] his;
+	private long[] los;
+	private int[] cnts;		// 0 for empty slots
+	private int mask;
+	private int size;
+	
+	public HashCounter() {
+		this(1024);
+	}
+	
+	/**
+	 * @param capacity initial capacity (rounded up to a power of 2)
+	 */
+	public HashCounter(int capacity) {
+		int cap = Integer.highestOneBit(Math.max(capacity, 16)-1) << 1;
+		his = new long[cap];
+		los = new long[cap];
+		cnts = new int[cap];
+		mask = cap-1;
+	}
+	
+	private int find(long hi, long lo) {
+		int i = (int)lo & mask;
+		while(cnts[i] != 0 && (his[i] != hi || los[i] != lo))
+			i = (i+1) & mask;
+		return i;
+	}
+	
+	/**
+	 * Returns the count of a key (0 if it has not been seen).
+	 */
+	public int get(long hi, long lo) {
+		return cnts[find(hi, lo)];
+	}
+	
+	/**
+	 * Increments the count of a key.
+	 * @return the new count
+	 */
+	public int inc(long hi, long lo) {
+		int i = find(hi, lo);
+		if(cnts[i] == 0) {
+			if(2*(size+1) > cnts.length) {
+				grow();
+				i = find(hi, lo);
+			}
+			his[i] = hi;
+			los[i] = lo;
+			size++;
+		}
+		return ++cnts[i];
+	}
+	
+	/**
+	 * Returns the number of distinct keys seen.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the counts of all distinct keys (in no particular order).
+	 */
+	public int[] getCounts() {
+		int[] res = new int[size];
+		int n = 0;
+		for(int i = 0; i < cnts.length; i++)
+			if(cnts[i] != 0)
+				res[n++] = cnts[i];
+		return res;
+	}
+	
+	/**
+	 * Writes the exact state of the table (so that iteration orders are kept when read back).
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(cnts.length);
+		out.writeInt(size);
+		for(int i = 0; i < cnts.length; i++) {
+			if(cnts[i] != 0) {
+				out.writeInt(i);
+				out.writeLong(his[i]);
+				out.writeLong(los[i]);
+				out.writeInt(cnts[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Restores a state written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		int cap = in.readInt();
+		his = new long[cap];
+		los = new long[cap];
+		cnts = new int[cap];
+		mask = cap-1;
+		size = in.readInt();
+		for(int n = 0; n < size; n++) {
+			int i = in.readInt();
+			his[i] = in.readLong();
+			los[i] = in.readLong();
+			cnts[i] = in.readInt();
+		}
+	}
+	
+	private void grow() {
+		long[] ohis = his, olos = los;
+		int[] ocnts = cnts;
+		his = new long[2*ohis.length];
+		los = new long[his.length];
+		cnts = new int[his.length];
+		mask = his.length-1;
+		for(int i = 0; i < ocnts.length; i++) {
+			if(ocnts[i] != 0) {
+				int j = find(ohis[i], olos[i]);
+				his[j] = ohis[i];
+				los[j] = olos[i];
+				cnts[j] = ocnts[i];
+			}
+		}
+	}
+}
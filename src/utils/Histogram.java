@@ -0,0 +1,96 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative integer values below a known bound, kept in a primitive
+ * array, so counting a value does not create any objects.
+ * 
+ * @author novadam
+ */
+public class Histogram {
+	
+	private static final int MAGIC = 0x48495354;	// "HIST"
+	
+	private long[] cnts;
+	private long total;
+	
+	/**
+	 * @param maxValue the largest value that can be counted
+	 */
+	public Histogram(int maxValue) {
+		cnts = new long[maxValue+1];
+	}
+	
+	public void inc(int value) {
+		cnts[value]++;
+		total++;
+	}
+	
+	/**
+	 * Counts <code>value</code> <code>cnt</code> times.
+	 */
+	public void inc(int value, long cnt) {
+		cnts[value] += cnt;
+		total += cnt;
+	}
+	
+	public long get(int value) {
+		return cnts[value];
+	}
+	
+	public int getMaxValue() {
+		return cnts.length-1;
+	}
+	
+	/**
+	 * Returns the sum of all counts.
+	 */
+	public long getTotal() {
+		return total;
+	}
+	
+	/**
+	 * Adds the counts of another histogram (e.g. of another chain) to this one.
+	 * @throws Error if the histograms have different bounds
+	 */
+	public void add(Histogram other) {
+		if(other.cnts.length != cnts.length)
+			throw new Error("Cannot merge histograms with different bounds");
+		for(int i = 0; i < cnts.length; i++)
+			cnts[i] += other.cnts[i];
+		total += other.total;
+	}
+	
+	public void reset() {
+		Arrays.fill(cnts, 0);
+		total = 0;
+	}
+	
+	/**
+	 * Writes the histogram in a compact binary form readable by {@link #readBinary(DataInput)}.
+	 */
+	public void writeBinary(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(cnts.length-1);
+		for(int i = 0; i < cnts.length; i++)
+			out.writeLong(cnts[i]);
+	}
+	
+	/**
+	 * Reads a histogram written by {@link #writeBinary(DataOutput)}.
+	 */
+	public static Histogram readBinary(DataInput in) throws IOException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("Not a histogram");
+		Histogram h = new Histogram(in.readInt());
+		for(int i = 0; i < h.cnts.length; i++) {
+			h.cnts[i] = in.readLong();
+			h.total += h.cnts[i];
+		}
+		return h;
+	}
+}
@@ -0,0 +1,80 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimator of the number of distinct (hashed) items, using a fixed amount
+ * of memory. Items must be supplied as well-mixed 64-bit hash values.
+ * 
+ * <p>Flajolet et al. (2007) HyperLogLog: the analysis of a near-optimal cardinality
+ * estimation algorithm.
+ * 
+ * @author novadam
+ */
+public class HyperLogLog {
+	
+	private int p;				// precision (number of index bits)
+	private byte[] regs;		// 2^p registers holding maximal ranks
+	
+	/**
+	 * @param p precision: 2^p one-byte registers are used, giving relative standard
+	 *   error of about 1.04/sqrt(2^p)
+	 */
+	public HyperLogLog(int p) {
+		if(p < 4 || p > 24)
+			throw new Error("HyperLogLog precision must be between 4 and 24");
+		this.p = p;
+		regs = new byte[1 << p];
+	}
+	
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(p);
+		out.write(regs);
+	}
+	
+	/**
+	 * Restores a state written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		if(in.readInt() != p)
+			throw new IOException("HyperLogLog precision mismatch");
+		in.readFully(regs);
+	}
+	
+	public void add(long hash) {
+		int ind = (int)(hash >>> (64-p));
+		int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p-1)))+1;
+		if(rank > regs[ind])
+			regs[ind] = (byte)rank;
+	}
+	
+	/**
+	 * Returns the estimated number of distinct items added.
+	 */
+	public double estimate() {
+		int m = regs.length, zeros = 0;
+		double sum = 0;
+		for(int i = 0; i < m; i++) {
+			sum += Math.scalb(1.0, -regs[i]);
+			if(regs[i] == 0)
+				zeros++;
+		}
+		double est = 0.7213/(1+1.079/m)*m*m/sum;
+		if(est <= 2.5*m && zeros > 0)		// small range correction (linear counting)
+			est = m*Math.log((double)m/zeros);
+		return est;
+	}
+	
+	/**
+	 * Returns the relative standard error of the estimate.
+	 */
+	public double getRelError() {
+		return 1.04/Math.sqrt(regs.length);
+	}
+	
+	public void reset() {
+		java.util.Arrays.fill(regs, (byte)0);
+	}
+}
@@ -0,0 +1,55 @@
+package utils;
+
+import java.util.Random;
+
+/**
+ * Random number generator producing the same sequence as {@link Random} for the same
+ * seed, but with its state exposed, so that a run can be checkpointed and resumed with
+ * exactly the same random numbers. Not thread-safe, and {@link #nextGaussian()} keeps
+ * a cached value outside of the state.
+ *
+ * @author novadam
+ */
+public class StateRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48)-1;
+
+	private long state;		// set by setSeed called from the superclass constructor
+
+	public StateRandom() {
+		super();
+	}
+
+	public StateRandom(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		state = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	@Override
+	protected int next(int bits) {
+		state = (state*MULTIPLIER+ADDEND) & MASK;
+		return (int)(state >>> (48-bits));
+	}
+
+	/**
+	 * Returns the internal state (the 48-bit linear congruential generator value).
+	 */
+	public long getState() {
+		return state;
+	}
+
+	/**
+	 * Sets the internal state as returned by {@link #getState()}.
+	 */
+	public void setState(long state) {
+		this.state = state & MASK;
+	}
+}
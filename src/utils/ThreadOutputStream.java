@@ -0,0 +1,53 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that passes the data to a target chosen by the writing thread, e.g. to
+ * give each of several runs in the same JVM its own standard output. The target is
+ * inherited by the threads started by a thread; threads without a target write to the
+ * default stream.
+ *
+ * @author novadam
+ */
+public class ThreadOutputStream extends OutputStream {
+
+	private OutputStream defaultOut;
+	private InheritableThreadLocal<OutputStream> target = new InheritableThreadLocal<OutputStream>();
+
+	public ThreadOutputStream(OutputStream defaultOut) {
+		this.defaultOut = defaultOut;
+	}
+
+	/**
+	 * Sets the target of the current thread (and of the threads it starts afterwards),
+	 * null to write to the default stream.
+	 */
+	public void setTarget(OutputStream out) {
+		if(out == null)
+			target.remove();
+		else
+			target.set(out);
+	}
+
+	private OutputStream out() {
+		OutputStream out = target.get();
+		return out != null ? out : defaultOut;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out().write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out().flush();
+	}
+}